@@ -1,23 +1,24 @@
 import java.util.ArrayList;
-import java.util.TreeMap;
-import java.util.Iterator;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.io.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.FileChannel;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.regex.Pattern;
 
 // extract data from mzXML and peptide files and feed to SpectrumMatcher and FragmentGenerator
 public class DataGrabber
 {
+	static final int maxBatchSize = 32; // precursors per work unit in 'grabAll()', small enough to keep all threads busy
+
 	public SynchronizedTreeMap globalSpectralMatch;
-	TreeMap<Integer, TreeMap<Integer, Long>> indexedSpectraOffset;
-	RandomAccessFile[] mzXMLReaders, peptideReaders, crosslinkReaders;
+	ScanIndexStruct[] scanIndices; // one per mzXML file
+	FileChannel[] mzXMLReaders; // positional reads only, shared by all threads
+	MzXMLScanReader[] scanReaders; // one per thread
+	PeakCentroider[] centroiders; // one per thread, for profile-mode spectra
+	ScoringContextStruct[] scoringContexts; // one per thread, reused by every candidate
+	CandidateFileStruct[] peptideFiles, crosslinkFiles; // memory-mapped, shared by all threads
 
 	String mzXMLPath;
-	final Pattern indexPattern = Pattern.compile("\\D*(\\d+)\\D*(\\d+)\\D*");
 
 	public DataGrabber()
 	{}
@@ -66,43 +67,52 @@ public class DataGrabber
 	}
 	*/
 
-	// obtain index of all scan number
+	// obtain index of all scan number, cached next to each mzXML file
 	// multi-thread
 	public void initmzXMLIndex(ArrayList<String> mzXMLFiles, ParamStruct param)
 	{
-		indexedSpectraOffset = new TreeMap<Integer, TreeMap<Integer, Long>>();
-		ArrayList<Future<TreeMap<Integer, Long>>> future = new ArrayList<Future<TreeMap<Integer, Long>>>(mzXMLFiles.size());
-		ExecutorService executor = Executors.newFixedThreadPool(param.numCPU, new IDThreadFactory("thread"));
+		scanIndices = new ScanIndexStruct[mzXMLFiles.size()];
+		ArrayList<Future<ScanIndexStruct>> future = new ArrayList<Future<ScanIndexStruct>>(mzXMLFiles.size());
+		BoundedExecutor executor = new BoundedExecutor(param.numCPU); // blocks when the queue is full
 
 		for (int i = 0; i < mzXMLFiles.size(); i++)
-			future.add((Future<TreeMap<Integer, Long>>) executor.submit(new IndexGrabberThread(i, mzXMLPath + mzXMLFiles.get(i), indexPattern))); // reuse pattern
+			future.add(executor.submit(new IndexGrabberThread(i, mzXMLPath + mzXMLFiles.get(i))));
 
-		executor.shutdown();
-        while (!executor.isTerminated()) {} // wait
+		executor.shutdownAndWait();
 
         for (int i = 0; i < mzXMLFiles.size(); i++)
         {
         	try
         	{
-        		indexedSpectraOffset.put(new Integer(i), future.get(i).get()); // add to the true list
+        		scanIndices[i] = future.get(i).get();
         	}
 
         	catch (Exception e)
         	{ HelperFunctions.debug("DataGrabber::initmzXMLIndex", HelperFunctions.getStackTrace(e)); }
         }
 
-		// HelperFunctions.debug("mzXML spectra index", indexedSpectraOffset);
+		// HelperFunctions.debug("mzXML spectra index", scanIndices);
 	}
 
 	// initialize access to all mzXML files
-	public void initmzXMLReaders(ArrayList<String> mzXMLFiles)
+	public void initmzXMLReaders(ArrayList<String> mzXMLFiles, ParamStruct param)
 	{
-		mzXMLReaders = new RandomAccessFile[mzXMLFiles.size()];
+		mzXMLReaders = new FileChannel[mzXMLFiles.size()];
+		scanReaders = new MzXMLScanReader[param.numCPU];
+		centroiders = new PeakCentroider[param.numCPU];
+		scoringContexts = new ScoringContextStruct[param.numCPU];
+
+		for (int i = 0; i < param.numCPU; i++)
+		{
+			scanReaders[i] = new MzXMLScanReader();
+			centroiders[i] = new PeakCentroider();
+			scoringContexts[i] = new ScoringContextStruct();
+		}
 
 		try
 		{
 			for (int i = 0; i < mzXMLFiles.size(); i++)
-				mzXMLReaders[i] = new RandomAccessFile(mzXMLPath + mzXMLFiles.get(i) + ".mzXML", "r");
+				mzXMLReaders[i] = new RandomAccessFile(mzXMLPath + mzXMLFiles.get(i) + ".mzXML", "r").getChannel(); // closing the channel closes the file
 		}
 
 		catch (Exception e)
@@ -112,15 +122,15 @@ public class DataGrabber
 	// initialize access to all peptide files
 	public void initPeptideReaders(ParamStruct param)
 	{
-		peptideReaders = new RandomAccessFile[param.numCPU];
-		crosslinkReaders = new RandomAccessFile[param.numCPU];
+		peptideFiles = new CandidateFileStruct[param.numCPU];
+		crosslinkFiles = new CandidateFileStruct[param.numCPU];
 
 		try
 		{
 			for (int i = 0; i < param.numCPU; i++)
 			{
-				peptideReaders[i] = new RandomAccessFile(".\\temp\\peptide-thread-" + i + ".temp", "r");
-				crosslinkReaders[i] = new RandomAccessFile(".\\temp\\crosslink-thread-" + i + ".temp", "r");
+				peptideFiles[i] = new CandidateFileStruct(param.getCandidateFileName(false, i), param.peptideRecordLength);
+				crosslinkFiles[i] = new CandidateFileStruct(param.getCandidateFileName(true, i), param.crosslinkRecordLength);
 			}
 		}
 
@@ -135,12 +145,12 @@ public class DataGrabber
 		{
 			for (int i = 0; i < mzXMLReaders.length; i++)
 				mzXMLReaders[i].close();
+
+			for (int i = 0; i < scanReaders.length; i++)
+				scanReaders[i].close();
 			
-			for (int i = 0; i < peptideReaders.length; i++)
-			{
-				peptideReaders[i].close();
-				crosslinkReaders[i].close();
-			}
+			peptideFiles = null; // mappings are released once collected, files are already closed
+			crosslinkFiles = null;
 		}
 
 		catch (Exception e)
@@ -148,16 +158,12 @@ public class DataGrabber
 	}
 
 	// grab peptide information
-	public PeptideStruct grabPeptide(RandomAccessFile reader, int peptideID, ArrayList<ProteinStruct> proteins, ParamStruct param)
+	// thread-safe, absolute reads from the mapped file
+	public PeptideStruct grabPeptide(CandidateFileStruct file, int peptideID, ArrayList<ProteinStruct> proteins, ParamStruct param)
 	{
 		try
 		{
-			reader.seek((long) peptideID * param.peptideStructBase64Length);
-			byte[] temp = new byte[param.peptideStructBase64Length];
-			reader.read(temp);
-			// HelperFunctions.debug("byte array", temp);
-			// System.out.println(new String(temp));
-			return new PeptideStruct(proteins, Base64Parser.base64toInteger(new String(temp)));
+			return file.getPeptide(peptideID, proteins, param.maxVarModPerPeptide);
 		}
 
 		catch (Exception e)
@@ -167,20 +173,12 @@ public class DataGrabber
 	}
 
 	// grab crosslink information
-	public CrosslinkStruct grabCrosslink(RandomAccessFile reader, int crosslinkID, ArrayList<ProteinStruct> proteins, ParamStruct param)
+	// thread-safe, absolute reads from the mapped file
+	public CrosslinkStruct grabCrosslink(CandidateFileStruct file, int crosslinkID, ArrayList<ProteinStruct> proteins, ParamStruct param)
 	{
 		try
 		{
-			reader.seek((long) crosslinkID * param.crosslinkStructBase64Length);
-			byte[] tempA = new byte[param.peptideStructBase64Length];
-			reader.read(tempA);
-
-			reader.seek((long) crosslinkID * param.crosslinkStructBase64Length + param.peptideStructBase64Length);
-
-			byte[] tempB = new byte[param.peptideStructBase64Length];
-			reader.read(tempB);
-
-			return new CrosslinkStruct(proteins, Base64Parser.base64toInteger(new String(tempA)), Base64Parser.base64toInteger(new String(tempB)));
+			return file.getCrosslink(crosslinkID, proteins, param.maxVarModPerPeptide);
 		}
 
 		catch (Exception e)
@@ -190,97 +188,41 @@ public class DataGrabber
 	}
 
 	// grab spectrum information
-	public SpectrumStruct grabSpectrum(RandomAccessFile reader, PrecursorStruct precursor, String rawfileName)
+	// scan is parsed and centroided by the thread's own reader and centroider, the shared file is never locked
+	// 'nextPrecursor' is grabbed next by the same reader, null if none, it limits the read-ahead
+	public SpectrumStruct grabSpectrum(FileChannel file, MzXMLScanReader scan, PeakCentroider centroider, PrecursorStruct precursor, PrecursorStruct nextPrecursor, String rawfileName, ParamStruct param)
 	{
 		try
 		{
-			long offset = indexedSpectraOffset.get(new Integer(precursor.rawFileID)).get(new Integer(precursor.scanNumber)).longValue();
-			reader.seek(offset);
-			String st = reader.readLine().trim();
-			String[] tempst;
+			long offset = scanIndices[precursor.rawFileID].getOffset(precursor.scanNumber);
+			long nextOffset = -1;
 
-			int parentScanNumber = -1, precision = 32;
-			double retentionTime = -1, basePeakIntensity = -1, precursorIntensity = -1;
-			boolean centroided = true;
+			if (nextPrecursor != null && nextPrecursor.rawFileID == precursor.rawFileID)
+				nextOffset = scanIndices[nextPrecursor.rawFileID].getOffset(nextPrecursor.scanNumber);
 
-			while (!st.startsWith("<precursorMz"))
+			if (offset < 0)
 			{
-				if (st.startsWith("centroided"))
-				{
-					st = st.split("=")[1];
-					st = st.substring(1, st.length() - 1); // remove "..."
-					
-					if (!st.equals("1"))
-						centroided = false;
-				}
-				
-				if (st.startsWith("retentionTime"))
-				{
-					st = st.split("=")[1];
-					st = st.substring(3, st.length() - 2); // remove "PT...S"
-					retentionTime = Double.valueOf(st) / 60.0; // convert to minutes
-				}
-
-				if (st.startsWith("basePeakIntensity"))
-				{
-					st = st.split("=")[1];
-					st = st.substring(1, st.length() - 1); // remove "..."
-					basePeakIntensity = Double.valueOf(st); // convert to minutes
-				}
-
-				st = reader.readLine().trim();
+				HelperFunctions.debug("DataGrabber::grabSpectrum", "Scan " + precursor.scanNumber + " not found in " + rawfileName);
+				return null;
 			}
 
-			// reached precursorMz
-			tempst = st.split(" ");
+			scan.read(file, offset, nextOffset);
 
-			for (int i = 0; i < tempst.length; i++)
+			if (scan.scanNumber != precursor.scanNumber)
 			{
-				if (tempst[i].startsWith("precursorScanNum"))
-				{
-					st = tempst[i].split("=")[1];
-					st = st.substring(1, st.length() - 1); // remove "..."
-					parentScanNumber = Integer.valueOf(st);
-				}
-
-				if (tempst[i].startsWith("precursorIntensity"))
-				{
-					st = tempst[i].split("=")[1];
-					st = st.substring(1, st.length() - 1); // remove "..."
-					precursorIntensity = Double.valueOf(st);
-				}
+				HelperFunctions.debug("DataGrabber::grabSpectrum", "Scan " + precursor.scanNumber + " of " + rawfileName + " points to scan " + scan.scanNumber + ", mzXML index may be broken!");
+				return null;
 			}
 
-			// last entry are peaks
-			st = reader.readLine().trim();
+			int numPeak = scan.decodePeaks(); // before taking the arrays, they may grow
 
-			while (!st.startsWith("contentType"))
+			if (!scan.centroided) // profile data
 			{
-				if (st.startsWith("precision"))
-				{
-					st = st.split("=")[1];
-					st = st.substring(1, st.length() - 1); // remove "..."
-					precision = Integer.valueOf(st);
-				}
-
-				st = reader.readLine().trim();
+				numPeak = centroider.centroid(scan.mz, scan.intensity, numPeak, param.centroidNoiseFactor);
+				return new SpectrumStruct(rawfileName, precursor, scan.parentScanNumber, scan.retentionTime, scan.basePeakIntensity, scan.precursorIntensity, Arrays.copyOf(centroider.mz, numPeak), Arrays.copyOf(centroider.intensity, numPeak));
 			}
 
-			// reached 'contentType=...'
-			double[][] spectrum = Base64Parser.base64toDouble(st.substring(st.indexOf(">") + 1, st.length() - 8), precision);
-			
-			if (!centroided)
-				spectrum = PeakCentroider.centroided(spectrum); // centroided data
-			
-			/*
-			if (precursor.scanNumber == 13844)
-			{
-				for (int i = 0 ; i < spectrum.length; i++)
-					System.out.println(spectrum[i][0] + "\t" + spectrum[i][1]);
-			}
-			*/
-
-			return new SpectrumStruct(rawfileName, precursor, parentScanNumber, retentionTime, basePeakIntensity, precursorIntensity, spectrum);
+			return new SpectrumStruct(rawfileName, precursor, scan.parentScanNumber, scan.retentionTime, scan.basePeakIntensity, scan.precursorIntensity, Arrays.copyOf(scan.mz, numPeak), Arrays.copyOf(scan.intensity, numPeak));
 		}
 
 		catch (Exception e)
@@ -289,6 +231,11 @@ public class DataGrabber
 		return null; // fails
 	}
 
+	// matched candidates of one precursor, 'precursorMatches' holds lists of 'ThreadPeptideStruct'
+	@SuppressWarnings("unchecked")
+	static ArrayList<ThreadPeptideStruct> getMatches(SynchronizedTreeMap precursorMatches, Object precursorID)
+	{ return (ArrayList<ThreadPeptideStruct>) precursorMatches.get(precursorID); }
+
 	// grab all matched pairs
 	// multi-thread
 	public void grabAll(SynchronizedTreeMap precursorMatches, ArrayList<PrecursorStruct> precursorInfo, ArrayList<String> mzXMLFiles, ArrayList<ProteinStruct> proteins, ParamStruct param)
@@ -296,7 +243,7 @@ public class DataGrabber
 		globalSpectralMatch = new SynchronizedTreeMap();
 		initmzXMLIndex(mzXMLFiles, param);
 
-		initmzXMLReaders(mzXMLFiles); // prepare RandomAccessFile instances
+		initmzXMLReaders(mzXMLFiles, param); // prepare FileChannel instances
 		initPeptideReaders(param);
 		
 		if (!param.outputTargetList)
@@ -307,57 +254,65 @@ public class DataGrabber
 			initTargetOutputFile(param);
 		*/
 		
-		// ExecutorService executor = Executors.newFixedThreadPool(param.numCPU, new IDThreadFactory("thread"));
-		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(param.numCPU, new IDThreadFactory("thread"));
-		ArrayList<ThreadPeptideStruct> matches;
-		Stack<FragmentIonStruct> fragmentedIons;
-		Integer precursorID;
-		ThreadPeptideStruct temppeptide;
+		// dispatch precursors in (rawFileID, offset) order, so that each mzXML file is read front to back
+		Object[] precursorIDs = precursorMatches.keySet().toArray();
+		final int[] rawFileIDs = new int[precursorIDs.length];
+		final long[] offsets = new long[precursorIDs.length];
+		Integer[] order = new Integer[precursorIDs.length];
 		PrecursorStruct currentPrecursor;
-		SpectrumStruct currentSpectrum;
-		PeptideStruct currentPeptide;
-		CrosslinkStruct currentCrosslink;
 
-		for (Iterator iter = precursorMatches.keySet().iterator(); iter.hasNext();) // for each precursor that matched
+		for (int i = 0; i < precursorIDs.length; i++)
 		{
-			precursorID = (Integer) iter.next();
-			currentPrecursor = precursorInfo.get(precursorID.intValue());
-			matches = precursorMatches.get(precursorID);
+			currentPrecursor = precursorInfo.get(((Integer) precursorIDs[i]).intValue());
+			rawFileIDs[i] = currentPrecursor.rawFileID;
+			offsets[i] = scanIndices[currentPrecursor.rawFileID].getOffset(currentPrecursor.scanNumber); // -1 if missing, reported by 'grabSpectrum()'
+			order[i] = i;
+		}
 
-			currentSpectrum = grabSpectrum(mzXMLReaders[currentPrecursor.rawFileID], currentPrecursor, mzXMLFiles.get(currentPrecursor.rawFileID));
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			public int compare(Integer entry1, Integer entry2) // compare based on file, then position in file
+			{
+				if (rawFileIDs[entry1] != rawFileIDs[entry2])
+					return Integer.compare(rawFileIDs[entry1], rawFileIDs[entry2]);
 
-			if (param.performDeisotope && param.isHighResFragmentTolerance) // de-isotope spectrum
-				currentSpectrum.setSpectrum(Deisotoper_ChiSquare.deisotope(currentSpectrum.spectrum, currentPrecursor.chargeState, param));
+				return Long.compare(offsets[entry1], offsets[entry2]);
+			}
+		});
 
-			// HelperFunctions.debug("spectrum", currentSpectrum);
+		// one work unit per batch of neighbouring precursors within one read-ahead window
+		// spectra are grabbed and processed by the worker
+		BoundedExecutor executor = new BoundedExecutor(param.numCPU); // blocks when the queue is full
+		ArrayList<PrecursorStruct> batchPrecursors = new ArrayList<PrecursorStruct>();
+		ArrayList<ArrayList<ThreadPeptideStruct>> batchMatches = new ArrayList<ArrayList<ThreadPeptideStruct>>();
+		int current, batchFileID = -1;
+		long batchOffset = 0;
 
-			for (Iterator<ThreadPeptideStruct> iter2 = matches.iterator(); iter2.hasNext();) // for each matched peptide
+		for (int i = 0; i < order.length; i++)
+		{
+			current = order[i];
+
+			if (!batchPrecursors.isEmpty() && (rawFileIDs[current] != batchFileID || offsets[current] - batchOffset >= MzXMLScanReader.readAheadSize || batchPrecursors.size() == maxBatchSize))
+			{
+				executor.execute(new GrabAndMatchSpectrum(this, batchPrecursors, batchMatches, mzXMLFiles.get(batchFileID), proteins, param));
+				batchPrecursors = new ArrayList<PrecursorStruct>();
+				batchMatches = new ArrayList<ArrayList<ThreadPeptideStruct>>();
+			}
+
+			if (batchPrecursors.isEmpty()) // start new batch
 			{
-				temppeptide = iter2.next();
-
-				if (temppeptide.isCrosslink) // crosslink
-				{
-					currentCrosslink = grabCrosslink(crosslinkReaders[temppeptide.threadID], temppeptide.peptideID, proteins, param);
-					// fragmentedIons = FragmentGenerator.fragment(currentCrosslink, param);
-					fragmentedIons = FragmentGenerator.fragmentManual(currentCrosslink, param);
-					executor.execute(new SpectrumMatcher(fragmentedIons, currentSpectrum, currentCrosslink, param));
-				}
-
-				else // linear
-				{
-					currentPeptide = grabPeptide(peptideReaders[temppeptide.threadID], temppeptide.peptideID, proteins, param);
-					// fragmentedIons = FragmentGenerator.fragment(currentPeptide);
-					fragmentedIons = FragmentGenerator.fragmentManual(currentPeptide);
-					executor.execute(new SpectrumMatcher(fragmentedIons, currentSpectrum, currentPeptide, param));
-				}
-				
-				while (executor.getQueue().size() > 2 * param.numCPU) {} // wait if the queue size is too high
+				batchFileID = rawFileIDs[current];
+				batchOffset = offsets[current];
 			}
+
+			batchPrecursors.add(precursorInfo.get(((Integer) precursorIDs[current]).intValue()));
+			batchMatches.add(getMatches(precursorMatches, precursorIDs[current]));
 		}
 
-		executor.shutdown();
-        while (!executor.isTerminated()) {} // wait
-        
-        closeAllFileReaders(); // close all input streams
+		if (!batchPrecursors.isEmpty()) // last batch
+			executor.execute(new GrabAndMatchSpectrum(this, batchPrecursors, batchMatches, mzXMLFiles.get(batchFileID), proteins, param));
+
+		executor.shutdownAndWait();
+		closeAllFileReaders(); // close all input streams
 	}
 }
\ No newline at end of file
@@ -1,22 +1,21 @@
 import java.util.ArrayList;
-// import java.util.concurrent.ExecutorService;
-// import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 // match observed precursor masses to theoretical crosslinks and linear peptides
 public class PrecursorMatcher
 {
 	Double[] observedMasses; // list of observed masses, sorted
 	Integer[] indexedObservedMasses; // contain original ID of sorted observed masses
+	public PrecursorIndexStruct precursorIndex; // lock-free index of observed masses for matching during digestion
 	public SynchronizedTreeMap globalPrecursorMatches = new SynchronizedTreeMap(); // mapping between observed mass ID to matched peptides
 
 	public PrecursorMatcher()
 	{}
 
 	// import observed precursors
-	public void importObservedMasses(ArrayList<PrecursorStruct> candidates)
+	public void importObservedMasses(ArrayList<PrecursorStruct> candidates, ParamStruct param)
 	{
 		observedMasses = new Double[candidates.size()];
+		double[] tempMasses = new double[candidates.size()];
 		PrecursorStruct temp;
 
 		// extract m/z and charge state
@@ -24,18 +23,27 @@ public class PrecursorMatcher
 		{
 			temp = candidates.get(i);
 			observedMasses[i] = new Double(temp.chargeState * temp.precursorMZ - temp.chargeState * MassInfo.proton); // compute mass wihtout and charges
+			tempMasses[i] = observedMasses[i].doubleValue();
 		}
 
+		precursorIndex = new PrecursorIndexStruct(tempMasses, param.precursorTolerance); // build once, read-only afterward
 		indexedObservedMasses = HelperFunctions.getIndexArray(observedMasses); // obtain index of the sorted observedMasses
 		// HelperFunctions.debug("precursor masses", observedMasses);
 	}
 
+	// merge matches recorded by each digestion thread into 'globalPrecursorMatches'
+	// call only after all threads finished
+	public void mergeThreadMatches(ThreadMatchStruct[] threadMatches)
+	{
+		for (int i = 0; i < threadMatches.length; i++)
+			threadMatches[i].mergeInto(globalPrecursorMatches);
+	}
+
 	// match precursor masses and add result to 'globalMatches'
 	// multi-thread
 	public void matchPrecursors(SynchronizedTreeMap[] globalPeptideMasses, ParamStruct param)
 	{
-		// ExecutorService executor = Executors.newFixedThreadPool(param.numCPU, new IDThreadFactory("thread"));
-		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(param.numCPU, new IDThreadFactory("thread"));
+		BoundedExecutor executor = new BoundedExecutor(param.numCPU); // blocks when the queue is full
 		Double[] peptideMasses;
 		Integer[] indexedPeptideMasses; 
 
@@ -56,11 +64,8 @@ public class PrecursorMatcher
 				indexedPeptideMasses = HelperFunctions.getIndexArray(peptideMasses); // sort and obtain index array
 				executor.execute(new PrecursorMatcherThread(globalPrecursorMatches, i, true, peptideMasses, indexedPeptideMasses, observedMasses, indexedObservedMasses, param.precursorTolerance)); // crosslink + loop
 			}
-			
-			while (executor.getQueue().size() > 2 * param.numCPU) {} // wait if the queue size is too high
 		}
 
-		executor.shutdown();
-        while (!executor.isTerminated()) {} // wait
+		executor.shutdownAndWait();
 	}
 }
\ No newline at end of file
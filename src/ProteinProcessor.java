@@ -1,8 +1,5 @@
 import java.util.*;
 import java.io.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 // process protein sequence --> in silico digestion and zero-length crosslinking
 public class ProteinProcessor
@@ -74,6 +71,7 @@ public class ProteinProcessor
 		{
 			ProteinStruct temp = iter.next();
 			temp.computeCleaveSites(protease);
+			temp.computeResidueMasses();
 		}
 	}
 
@@ -81,8 +79,7 @@ public class ProteinProcessor
 	// multi-thread
 	public void generatePeptides(ParamStruct param)
 	{
-		// ExecutorService executor = Executors.newFixedThreadPool(param.numCPU, new IDThreadFactory("thread"));
-		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(param.numCPU, new IDThreadFactory("thread"));
+		BoundedExecutor executor = new BoundedExecutor(param.numCPU); // blocks when the queue is full
 		int numStartSite, chunkSize;
 
 		// add to queue
@@ -115,21 +112,16 @@ public class ProteinProcessor
 
 		// HelperFunctions.debug("peptide queue", queue);
 		for (Iterator<ThreadLimitStruct> iter = queue.iterator(); iter.hasNext();)
-		{
 			executor.execute(new ProteinProcessorThread(globalPeptideMasses, proteins, iter.next(), param));
-			
-			while (executor.getQueue().size() > 2 * param.numCPU) {} // wait if the queue size is too high
-		}
 
-		executor.shutdown();
-        while (!executor.isTerminated()) {} // wait
+		executor.shutdownAndWait();
 	}
 	
 	// generate all peptides
 	// multi-thread
 	public void generatePeptidesAndMatch(PrecursorMatcher matcher, ParamStruct param)
 	{
-		ExecutorService executor = Executors.newFixedThreadPool(param.numCPU, new IDThreadFactory("thread"));
+		BoundedExecutor executor = new BoundedExecutor(param.numCPU); // blocks when the queue is full
 		int numStartSite, chunkSize;
 
 		// add to queue
@@ -153,19 +145,21 @@ public class ProteinProcessor
 				queue.add(new ThreadLimitStruct(i, k, chunkSize * (param.numCPU - 1), numStartSite - 1)); // crosslinks, for last chunk
 		}
 
-		// initialize global mass lists
+		// initialize per-thread match buffers, each one is only touched by its own thread
+		ThreadMatchStruct[] threadMatches = new ThreadMatchStruct[param.numCPU];
+
 		for (int i = 0; i < param.numCPU; i++)
-		{
-			globalPeptideMasses[0].put("thread-" + i, new ArrayList<Double>());
-			globalPeptideMasses[1].put("thread-" + i, new ArrayList<Double>());
-		}
+			threadMatches[i] = new ThreadMatchStruct(i);
+
+		// crosslink partners of each protein, built on first use and shared by all tasks
+		PeptideFormIndexStruct[] partnerForms = new PeptideFormIndexStruct[proteins.size()];
 
 		// HelperFunctions.debug("peptide queue", queue);
 		for (Iterator<ThreadLimitStruct> iter = queue.iterator(); iter.hasNext();)
-			executor.execute(new ProcessAndMatchPrecursor(globalPeptideMasses, proteins, iter.next(), param, matcher.globalPrecursorMatches, matcher.observedMasses, matcher.indexedObservedMasses));
+			executor.execute(new ProcessAndMatchPrecursor(proteins, iter.next(), param, matcher.precursorIndex, partnerForms, threadMatches));
 
-		executor.shutdown();
-        while (!executor.isTerminated()) {} // wait
+		executor.shutdownAndWait();
+		matcher.mergeThreadMatches(threadMatches); // collect matches from all threads
 	}
 
 	// return number of proteins
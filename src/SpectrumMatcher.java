@@ -1,9 +1,4 @@
-import java.util.TreeMap;
-import java.util.HashSet;
-import java.util.Stack;
-import java.util.Iterator;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 
 // match spectrum to theoretical peptide
 // called as multi-thread via 'DataGrabber'
@@ -19,13 +14,20 @@ public class SpectrumMatcher implements Runnable
 	ParamStruct param;
 	PeptideStruct peptide = null;
 	CrosslinkStruct crosslink = null;
-	Stack<FragmentIonStruct> fragmentedIons; // list of major b and y fragmented ions, only used once, can be edited safely
+	FragmentLadderStruct ladder; // major b and y fragmented ions, derived ions are matched on the fly
 	SpectrumStruct currentSpectrum;
-	TreeMap<Integer, ArrayList<MatchedFragmentStruct>> matchedMap = new TreeMap<Integer, ArrayList<MatchedFragmentStruct>>();
+	ScoringContextStruct context; // matches of this candidate, reused by the thread for the next one
+	
+	// charged peaks of the spectrum, set in 'run()'
+	double[] sortedMasses;
+	int[] chargedPeakIDs;
+	byte[] chargedPeakCharges;
+	int[] matchedRange = new int[2]; // reusable output of 'MassMatcher.match()'
 
-	public SpectrumMatcher(Stack<FragmentIonStruct> fragmentedIons, SpectrumStruct currentSpectrum, Object generalizedPeptide, ParamStruct param)
+	public SpectrumMatcher(FragmentLadderStruct ladder, SpectrumStruct currentSpectrum, Object generalizedPeptide, ScoringContextStruct context, ParamStruct param)
 	{
-		this.fragmentedIons = fragmentedIons;
+		this.ladder = ladder;
+		this.context = context;
 		this.currentSpectrum = currentSpectrum;
 		this.param = param;
 		globalSpectrumStat = currentSpectrum.getTotalPeakAndInt(param);
@@ -49,6 +51,7 @@ public class SpectrumMatcher implements Runnable
 			peptideLength[1] = crosslink.peptideB.getSequenceLength(false);
 			precursorMassError = HelperFunctions.getppmError(MassInfo.getMass(crosslink, param) + MassInfo.proton, currentSpectrum.precursor.getPrecursorMHP());
 			isCrosslink = true;
+			crosslinkSiteBound = CrosslinkSiteIdentifier.crosslinkSiteBound(crosslink, param.crosslinker); // obtain boundary of crosslink sites
 			// HelperFunctions.debug("crosslink", crosslink);
 		}
 		
@@ -59,132 +62,75 @@ public class SpectrumMatcher implements Runnable
 	public String toTargetListEntry()
 	{ return currentSpectrum.precursor.precursorMZ + "\t" + currentSpectrum.retentionTime + "\t" + precursorMassError; }
 	
-	// generate all neutral losses form of a major ion
-	public void generateAllNeutralLosses(int step, FragmentIonStruct original, ArrayList<FragmentIonStruct> target)
-	{
-		boolean[] tempFlag = original.neutralLossFlag;
-
-		if (step < tempFlag.length) // valid step
-		{
-			if (tempFlag[step])
-			{
-				String neutralLossName = NeutralLossGenerator.neutralLossName[step];
-				int currentLength = target.size();
-
-				if (neutralLossName.equals("H2O") || neutralLossName.equals("NH3")) // repeat according to 'ParamStruct'
-				{
-					int repeatCount = param.numNeutralLoss;
-
-					if (original.isPrecursor())
-						repeatCount = repeatCount * 2; // double for precursor
-
-					for (int n = 0; n < repeatCount; n++)
-					{
-						for (int i = currentLength * n; i < currentLength * (n + 1); i++)
-							target.add(new FragmentIonStruct(target.get(i), neutralLossName));
-
-						// currentLength = target.size(); // update length of 'target'
-					}
-				}
-
-				else // add only once for each entry in 'target'
-				{
-					for (int i = 0; i < currentLength; i++)
-						target.add(new FragmentIonStruct(target.get(i), neutralLossName));
-				}
-			}
-
-			generateAllNeutralLosses(step + 1, original, target); // continue
-		}
-	}
-
-	// check whether a fragment ion agree with crosslink site
-	public boolean checkFragmentWithLinkSite(FragmentIonStruct ion, int siteA, int siteB)
+	// link sites a matched fragment ion agree with, as an interval of sites on its own peptide
+	// b-ion is linked only when it contains the site, y-ion likewise counted from the other end
+	public void setLinkSiteInterval(int match)
 	{
-		if (ion.ionType == 'p') // precursor
-			return true;
+		byte type = context.type[match];
+		int ionID = context.ionID[match];
+		int length = peptideLength[FragmentLadderStruct.fromSecondPeptide(type) ? 1 : 0];
+		int low = Integer.MIN_VALUE, high = Integer.MAX_VALUE; // precursor agree with any site
 		
-		if (ion.fromSecondPeptide) // peptideB
+		if (FragmentLadderStruct.getIonType(type) == 'b') // b-ion
 		{
-			if (ion.ionType == 'b') // b-ion
-			{
-				if (ion.ionID < siteB && !ion.isCrosslink) // non-linked
-					return true;
-				if (ion.ionID >= siteB && ion.isCrosslink) // linked
-					return true;
-			}
-			
-			else // y-ion
-			{
-				if (ion.ionID <= peptideLength[1] - siteB && !ion.isCrosslink) // non-linked
-					return true;
-				if (ion.ionID > peptideLength[1] - siteB && ion.isCrosslink) // linked
-					return true;
-			}
+			if (FragmentLadderStruct.isCrosslink(type)) // linked
+				high = ionID;
+			else // non-linked
+				low = ionID + 1;
 		}
 		
-		else // peptideA
+		else if (FragmentLadderStruct.getIonType(type) == 'y') // y-ion
 		{
-			if (ion.ionType == 'b') // b-ion
-			{
-				if (ion.ionID < siteA && !ion.isCrosslink) // non-linked
-					return true;
-				if (ion.ionID >= siteA && ion.isCrosslink) // linked
-					return true;
-			}
-			
-			else // y-ion
-			{
-				if (ion.ionID <= peptideLength[0] - siteA && !ion.isCrosslink) // non-linked
-					return true;
-				if (ion.ionID > peptideLength[0] - siteA && ion.isCrosslink) // linked
-					return true;
-			}
+			if (FragmentLadderStruct.isCrosslink(type)) // linked
+				low = length - ionID + 1;
+			else // non-linked
+				high = length - ionID;
 		}
 		
-		return false; // otherwise
+		context.siteLow[match] = low;
+		context.siteHigh[match] = high;
 	}
 	
 	// check whether a fragment ion agree with crosslink bounary
-	public boolean checkFragmentWithLinkSite(FragmentIonStruct ion, int[][] boundary)
+	public boolean checkFragmentWithLinkSite(byte type, int ionID, int[][] boundary)
 	{
-		if (ion.ionType == 'p') // precursor
+		if (FragmentLadderStruct.isPrecursor(type)) // precursor
 			return true;
 		
-		if (ion.fromSecondPeptide) // peptideB
+		if (FragmentLadderStruct.fromSecondPeptide(type)) // peptideB
 		{
-			if (ion.ionType == 'b') // b-ion
+			if (FragmentLadderStruct.getIonType(type) == 'b') // b-ion
 			{
-				if (ion.ionID < boundary[1][0] && ion.isCrosslink) // linked
+				if (ionID < boundary[1][0] && FragmentLadderStruct.isCrosslink(type)) // linked
 					return false;
-				if (ion.ionID >= boundary[1][1] && !ion.isCrosslink) // non-linked
+				if (ionID >= boundary[1][1] && !FragmentLadderStruct.isCrosslink(type)) // non-linked
 					return false;
 			}
 			
 			else // y-ion
 			{
-				if (ion.ionID > peptideLength[1] - boundary[1][0] && !ion.isCrosslink) // non-linked
+				if (ionID > peptideLength[1] - boundary[1][0] && !FragmentLadderStruct.isCrosslink(type)) // non-linked
 					return false;
-				if (ion.ionID <= peptideLength[1] - boundary[1][1] && ion.isCrosslink) // linked
+				if (ionID <= peptideLength[1] - boundary[1][1] && FragmentLadderStruct.isCrosslink(type)) // linked
 					return false;
 			}
 		}
 		
 		else // peptideA
 		{
-			if (ion.ionType == 'b') // b-ion
+			if (FragmentLadderStruct.getIonType(type) == 'b') // b-ion
 			{
-				if (ion.ionID < boundary[0][0] && ion.isCrosslink) // linked
+				if (ionID < boundary[0][0] && FragmentLadderStruct.isCrosslink(type)) // linked
 					return false;
-				if (ion.ionID >= boundary[0][1] && !ion.isCrosslink) // non-linked
+				if (ionID >= boundary[0][1] && !FragmentLadderStruct.isCrosslink(type)) // non-linked
 					return false;
 			}
 			
 			else // y-ion
 			{
-				if (ion.ionID > peptideLength[0] - boundary[0][0] && !ion.isCrosslink) // non-linked
+				if (ionID > peptideLength[0] - boundary[0][0] && !FragmentLadderStruct.isCrosslink(type)) // non-linked
 					return false;
-				if (ion.ionID <= peptideLength[0] - boundary[0][1] && ion.isCrosslink) // linked
+				if (ionID <= peptideLength[0] - boundary[0][1] && FragmentLadderStruct.isCrosslink(type)) // linked
 					return false;
 			}
 		}
@@ -192,138 +138,164 @@ public class SpectrumMatcher implements Runnable
 		return true; // otherwise
 	}
 	
-	// compute scores based on specific crosslink site
-	public double[] computeScore(int siteA, int siteB)
+	// compute scores of every crosslink site pair, the k-th pair links 'sitesA[pairA[k]]' to 'sitesB[pairB[k]]'
+	// site agreement is resolved once per peak and site, then all pairs are scored in a single pass over peaks
+	// peaks are still visited in ascending order, so each pair sums intensities exactly as a pair-by-pair rescan would
+	public double[][] computeSiteScores(int[] sitesA, int[] sitesB, int[] pairA, int[] pairB)
 	{
-		double[] matchedStat = new double[2]; // count number of matched peak and total matched intensity
-		double[] localScore = new double[overallScores.length];
+		int numPair = pairA.length;
+		double[][] localScores = new double[numPair][overallScores.length]; // matched peak count and intensity in the first two entries until the end
 		
-		HashSet<String> majorMatchA = new HashSet<String>();
-		HashSet<String> majorMatchB = new HashSet<String>(); // record major ion matches for each peptide
+		for (int m = 0; m < context.numMatch; m++) // each match once
+			setLinkSiteInterval(m);
 		
-		ArrayList<MatchedFragmentStruct> tempMatchList;
-		MatchedFragmentStruct bestMatch, bestMajorMatch;
-		Integer peakID;
+		// per peak, whether any match agree with each site and the best major ion match that does, in match order
+		boolean[] agreeA = new boolean[sitesA.length], agreeB = new boolean[sitesB.length];
+		int[] majorA = new int[sitesA.length], majorB = new int[sitesB.length];
+		int[] majorRankA = new int[sitesA.length], majorRankB = new int[sitesB.length];
 		
-		for (Iterator<Integer> iter = matchedMap.keySet().iterator(); iter.hasNext();)
+		int numWord = (Math.max(peptideLength[0], peptideLength[1]) >>> 6) + 1; // major ion coverage of each pair, b- and y-ion of each peptide
+		long[] coverage = context.getSiteCoverage(numPair * 4 * numWord);
+		
+		int peakID, rank, bestMajorMatch, word;
+		boolean withPrecursor;
+		double intensity;
+		
+		for (int p = 0; p < context.numTouched; p++)
 		{
-			peakID = iter.next();
-			tempMatchList = matchedMap.get(peakID);
-			bestMatch = null;
-			bestMajorMatch = null;
+			peakID = context.touchedPeaks[p];
+			withPrecursor = false;
+			Arrays.fill(agreeA, false);
+			Arrays.fill(agreeB, false);
+			Arrays.fill(majorA, -1);
+			Arrays.fill(majorB, -1);
+			rank = 0;
 			
-			for (int i = 0; i < tempMatchList.size(); i++) // look for the best match which agree with crosslink site interpretation
+			for (int m = context.firstMatch[peakID]; m >= 0; m = context.nextMatch[m], rank++)
 			{
-				if (checkFragmentWithLinkSite(tempMatchList.get(i).ion, siteA, siteB))
-				{
-					bestMatch = tempMatchList.get(i);
-					// HelperFunctions.debug("bestMatch" + peakID.toString(), bestMatch);
-					break;  // only need the best one
-				}
+				if (FragmentLadderStruct.isPrecursor(context.type[m])) // agree with any site
+					withPrecursor = true;
+				else if (FragmentLadderStruct.fromSecondPeptide(context.type[m])) // peptideB
+					resolveSites(m, rank, sitesB, agreeB, majorB, majorRankB);
+				else // peptideA
+					resolveSites(m, rank, sitesA, agreeA, majorA, majorRankA);
 			}
 			
-			for (int i = 0; i < tempMatchList.size(); i++) // look for the best major ion match which agree with crosslink site interpretation
+			intensity = currentSpectrum.getIntensity(peakID);
+			
+			for (int k = 0; k < numPair; k++)
 			{
-				if (tempMatchList.get(i).isMajorIon() && checkFragmentWithLinkSite(tempMatchList.get(i).ion, siteA, siteB))
+				if (withPrecursor || agreeA[pairA[k]] || agreeB[pairB[k]]) // best match agree with this site pair
 				{
-					bestMajorMatch = tempMatchList.get(i);
-					// HelperFunctions.debug("bestMatch" + peakID.toString(), bestMatch);
-					break;  // only need the best one
+					if (intensity >= param.minPeakIntToScore)
+					{
+						localScores[k][0] += 1; // add matched peak count
+						localScores[k][1] += intensity;
+					}
+					
+					bestMajorMatch = majorA[pairA[k]];
+					
+					if (majorB[pairB[k]] >= 0 && (bestMajorMatch < 0 || majorRankB[pairB[k]] < majorRankA[pairA[k]]))
+						bestMajorMatch = majorB[pairB[k]];
+					
+					if (bestMajorMatch >= 0) // only count major ion for ion coverage
+					{
+						word = ((k * 2 + (FragmentLadderStruct.fromSecondPeptide(context.type[bestMajorMatch]) ? 1 : 0)) * 2 + 
+								(FragmentLadderStruct.getIonType(context.type[bestMajorMatch]) == 'b' ? 0 : 1)) * numWord;
+						coverage[word + (context.ionID[bestMajorMatch] >>> 6)] |= 1L << context.ionID[bestMajorMatch];
+					}
 				}
 			}
+		}
+		
+		int[] bIonCount = new int[2], ionCount = new int[2];
+		double[] localScore;
+		
+		for (int k = 0; k < numPair; k++)
+		{
+			localScore = localScores[k];
 			
-			if (bestMatch != null)
+			// count number of b-ions and all major ions
+			for (int i = 0; i < 2; i++)
 			{
-				if (currentSpectrum.getIntensity(peakID.intValue()) >= param.minPeakIntToScore)
-				{
-					matchedStat[0] += 1; // add matched peak count
-					matchedStat[1] += currentSpectrum.getIntensity(peakID.intValue());
-				}
+				bIonCount[i] = countBits(coverage, ((k * 2 + i) * 2) * numWord, numWord);
+				ionCount[i] = bIonCount[i] + countBits(coverage, ((k * 2 + i) * 2 + 1) * numWord, numWord);
+			}
+			
+			// compute coverage percentage
+			localScore[0] = localScore[0] / globalSpectrumStat[0]; // peak coverage
+			localScore[1] = localScore[1] / globalSpectrumStat[1]; // intensity coverage
+			
+			localScore[2] = bIonCount[0] * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA b-ion
+			localScore[3] = (ionCount[0] - bIonCount[0]) * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA y-ion
+			localScore[4] = ionCount[0] * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA
 			
-				if (bestMajorMatch != null) // only count major ion for ion coverage
+			localScore[5] = bIonCount[1] * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB b-ion
+			localScore[6] = (ionCount[1] - bIonCount[1]) * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB y-ion	
+			localScore[7] = ionCount[1] * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB
+			
+			localScore[8] = Math.sqrt(localScore[4] * localScore[7]); // update ion coverage
+			localScore[9] = Math.pow(localScore[0] * localScore[1] * localScore[8], 1.0 / 3); // GM score
+		}
+		
+		return localScores;
+	}
+	
+	// mark sites that match 'm' agree with, and keep it as their best major ion match if there is none yet
+	void resolveSites(int m, int rank, int[] sites, boolean[] agree, int[] major, int[] majorRank)
+	{
+		boolean isMajor = context.isMajorIon(m);
+		
+		for (int i = 0; i < sites.length; i++)
+		{
+			if (sites[i] >= context.siteLow[m] && sites[i] <= context.siteHigh[m])
+			{
+				agree[i] = true;
+				
+				if (isMajor && major[i] < 0)
 				{
-					if (bestMajorMatch.ion.fromSecondPeptide) // from peptideB
-						majorMatchB.add(bestMajorMatch.ion.getMajorTag());
-					else
-						majorMatchA.add(bestMajorMatch.ion.getMajorTag());
+					major[i] = m;
+					majorRank[i] = rank;
 				}
 			}
 		}
+	}
+	
+	// number of set bits in 'length' words from 'start'
+	static int countBits(long[] bits, int start, int length)
+	{
+		int count = 0;
 		
-		int[] bIonCount = new int[2];
-		
-		// count number of b-ions
-		for (Iterator<String> iter = majorMatchA.iterator(); iter.hasNext();)
-			if (iter.next().charAt(1) == 'b')
-				bIonCount[0]++;
-		
-		for (Iterator<String> iter = majorMatchB.iterator(); iter.hasNext();)
-			if (iter.next().charAt(1) == 'b')
-				bIonCount[1]++;
-		
-		// compute coverage percentage
-		localScore[0] = matchedStat[0] / globalSpectrumStat[0]; // peak coverage
-		localScore[1] = matchedStat[1] / globalSpectrumStat[1]; // intensity coverage
-		
-		localScore[2] = bIonCount[0] * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA b-ion
-		localScore[3] = (majorMatchA.size() - bIonCount[0]) * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA y-ion
-		localScore[4] = majorMatchA.size() * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA
-		
-		localScore[5] = bIonCount[1] * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB b-ion
-		localScore[6] = (majorMatchB.size() - bIonCount[1]) * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB y-ion	
-		localScore[7] = majorMatchB.size() * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB
-		
-		localScore[8] = Math.sqrt(localScore[4] * localScore[7]); // update ion coverage
-		localScore[9] = Math.pow(localScore[0] * localScore[1] * localScore[8], 1.0 / 3); // GM score
-		
-		// HelperFunctions.debug("majorMatchA", majorMatchA);
-		// HelperFunctions.debug("majorMatchB", majorMatchB);
-		
-		// HelperFunctions.debug("matched count", matchedStat);		
-		// HelperFunctions.debug("matching score", localScore);
+		for (int i = start; i < start + length; i++)
+			count += Long.bitCount(bits[i]);
 		
-		return localScore;
+		return count;
 	}
 	
 	// compute scores based solely on best match of each peak
 	public void computeOverallScores()
 	{		
-		if (isCrosslink) // obtain boundary of crosslink sites
-			crosslinkSiteBound = CrosslinkSiteIdentifier.crosslinkSiteBound(crosslink, param.crosslinker);
-		
 		double[] matchedStat = new double[2]; // count number of matched peak and total matched intensity
 		
-		HashSet<String> majorMatchA = new HashSet<String>();
-		HashSet<String> majorMatchB = new HashSet<String>(); // record major ion matches for each peptide
+		context.clearCoverage(); // record major ion matches for each peptide
 		
-		ArrayList<MatchedFragmentStruct> tempMatchList;
-		MatchedFragmentStruct bestMatch, bestMajorMatch;
-		Integer peakID;
+		int peakID, bestMatch, bestMajorMatch;
 		
-		for (Iterator<Integer> iter = matchedMap.keySet().iterator(); iter.hasNext();)
+		for (int p = 0; p < context.numTouched; p++)
 		{
-			peakID = iter.next();
-			bestMatch = null;
-			bestMajorMatch = null;
-			tempMatchList = matchedMap.get(peakID);
-			
-			/*
-			if (currentSpectrum.precursor.scanNumber == 1047)
-			{
-				HelperFunctions.debug("MSMSpeak", currentSpectrum.spectrum[peakID.intValue()]);
-				HelperFunctions.debug("tempMatchList", tempMatchList);
-			}
-			*/
+			peakID = context.touchedPeaks[p];
+			bestMatch = -1;
+			bestMajorMatch = -1;
 			
 			if (!isCrosslink)
 			{
-				bestMatch = tempMatchList.get(0); // retrieve best match for this peak
+				bestMatch = context.firstMatch[peakID]; // retrieve best match for this peak
 				
-				for (int i = 0; i < tempMatchList.size(); i++)
+				for (int m = bestMatch; m >= 0; m = context.nextMatch[m])
 				{
-					if (tempMatchList.get(i).isMajorIon()) // retrieve best major ion match
+					if (context.isMajorIon(m)) // retrieve best major ion match
 					{
-						bestMajorMatch = tempMatchList.get(i);
+						bestMajorMatch = m;
 						break;
 					}
 				}
@@ -331,91 +303,65 @@ public class SpectrumMatcher implements Runnable
 			
 			else
 			{
-				for (int i = 0; i < tempMatchList.size(); i++) // look for the best match which agree with crosslink site interpretation
+				for (int m = context.firstMatch[peakID]; m >= 0; m = context.nextMatch[m]) // look for the best match which agree with crosslink site interpretation
 				{
-					if (checkFragmentWithLinkSite(tempMatchList.get(i).ion, crosslinkSiteBound))
+					if (checkFragmentWithLinkSite(context.type[m], context.ionID[m], crosslinkSiteBound))
 					{
-						bestMatch = tempMatchList.get(i);
+						bestMatch = m;
 						break;  // only need the best one
 					}
 				}
 				
-				for (int i = 0; i < tempMatchList.size(); i++) // look for the best major ion match which agree with crosslink site interpretation
+				for (int m = context.firstMatch[peakID]; m >= 0; m = context.nextMatch[m]) // look for the best major ion match which agree with crosslink site interpretation
 				{
-					if (tempMatchList.get(i).isMajorIon() && checkFragmentWithLinkSite(tempMatchList.get(i).ion, crosslinkSiteBound))
+					if (context.isMajorIon(m) && checkFragmentWithLinkSite(context.type[m], context.ionID[m], crosslinkSiteBound))
 					{
-						bestMajorMatch = tempMatchList.get(i);
+						bestMajorMatch = m;
 						break;  // only need the best one
 					}
 				}
 			}
 			
-			if (bestMatch != null)
+			if (bestMatch >= 0)
 			{
-				/*
-				if (currentSpectrum.precursor.scanNumber == 1047)
-				{
-					HelperFunctions.debug("MSMSpeak", currentSpectrum.spectrum[peakID.intValue()]);
-					HelperFunctions.debug("bestMatch", bestMatch);
-				}
-				*/
-				
-				if (currentSpectrum.getIntensity(peakID.intValue()) >= param.minPeakIntToScore)
+				if (currentSpectrum.getIntensity(peakID) >= param.minPeakIntToScore)
 				{
 					matchedStat[0] += 1; // add matched peak count
-					matchedStat[1] += currentSpectrum.getIntensity(peakID.intValue());
+					matchedStat[1] += currentSpectrum.getIntensity(peakID);
 				}
 				
-				if (bestMajorMatch != null) // only count major ion for ion coverage
+				if (bestMajorMatch >= 0) // only count major ion for ion coverage
 				{
-					if (bestMajorMatch.ion.fromSecondPeptide) // from peptideB
-						majorMatchB.add(bestMajorMatch.ion.getMajorTag());
-					else
-						majorMatchA.add(bestMajorMatch.ion.getMajorTag());
+					context.addCoverage(context.type[bestMajorMatch], context.ionID[bestMajorMatch]);
 				}
 			}
 		}
 		
-		int[] bIonCount = new int[2];
-		
-		// count number of b-ions
-		for (Iterator<String> iter = majorMatchA.iterator(); iter.hasNext();)
-			if (iter.next().charAt(1) == 'b')
-				bIonCount[0]++;
+		// count number of b-ions and all major ions
+		int[] bIonCount = {context.countCoverage(context.bIonCoverage[0]), context.countCoverage(context.bIonCoverage[1])};
+		int[] ionCount = {bIonCount[0] + context.countCoverage(context.yIonCoverage[0]), bIonCount[1] + context.countCoverage(context.yIonCoverage[1])};
 		
 		// compute coverage percentage
 		overallScores[0] = matchedStat[0] / globalSpectrumStat[0]; // peak coverage
 		overallScores[1] = matchedStat[1] / globalSpectrumStat[1]; // intensity coverage
 		
 		overallScores[2] = bIonCount[0] * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA b-ion
-		overallScores[3] = (majorMatchA.size() - bIonCount[0]) * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA y-ion
-		overallScores[4] = majorMatchA.size() * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA
+		overallScores[3] = (ionCount[0] - bIonCount[0]) * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA y-ion
+		overallScores[4] = ionCount[0] * 0.5 / (peptideLength[0] - 1); // ion coverage peptideA
 		
 		overallScores[8] = overallScores[4]; // ion coverage
 		
 		if (isCrosslink)
 		{
-			for (Iterator<String> iter = majorMatchB.iterator(); iter.hasNext();)
-				if (iter.next().charAt(1) == 'b')
-					bIonCount[1]++;
-			
 			overallScores[5] = bIonCount[1] * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB b-ion
-			overallScores[6] = (majorMatchB.size() - bIonCount[1]) * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB y-ion	
-			overallScores[7] = majorMatchB.size() * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB
+			overallScores[6] = (ionCount[1] - bIonCount[1]) * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB y-ion	
+			overallScores[7] = ionCount[1] * 0.5 / (peptideLength[1] - 1); // ion coverage peptideB
 			
 			overallScores[8] = Math.sqrt(overallScores[4] * overallScores[7]); // update ion coverage
 		}
 		
 		overallScores[9] = Math.pow(overallScores[0] * overallScores[1] * overallScores[8], 1.0 / 3); // GM score
 		
-		/*
-		if (currentSpectrum.precursor.scanNumber == 1047)
-		{
-			HelperFunctions.debug("majorMatchA", majorMatchA);
-			HelperFunctions.debug("majorMatchB", majorMatchB);
-		}
-		*/
-		
 		// HelperFunctions.debug("source count", globalStat);
 		// HelperFunctions.debug("matched count", matchedStat);		
 		// HelperFunctions.debug("matching score", overallScores);
@@ -458,39 +404,42 @@ public class SpectrumMatcher implements Runnable
 				for (int i = 0; i < overallScores.length; i++)
 					tempoutput[0] += "\t" + overallScores[i];
 				
-				int current = 1;
+				// sites of peptideA, then of peptideB, A_A and B_B first, followed by A_B and B_A
+				int[] sitesA = new int[siteA_A.length + siteA_B.length], sitesB = new int[siteB_B.length + siteB_A.length];
+				System.arraycopy(siteA_A, 0, sitesA, 0, siteA_A.length);
+				System.arraycopy(siteA_B, 0, sitesA, siteA_A.length, siteA_B.length);
+				System.arraycopy(siteB_B, 0, sitesB, 0, siteB_B.length);
+				System.arraycopy(siteB_A, 0, sitesB, siteB_B.length, siteB_A.length);
 				
-				double[] localScore = new double[overallScores.length];
+				int[] pairA = new int[numPossibility], pairB = new int[numPossibility];
+				int current = 0;
 				
 				for (int i = 0; i < siteA_A.length; i++) // A_A to B_B
 				for (int j = 0; j < siteB_B.length; j++)
 				{
-					localScore = computeScore(siteA_A[i], siteB_B[j]); // compute GM score
-				
-					if (localScore[localScore.length - 1] >= param.minScoreSite)
-					{
-						tempoutput[current] = report + "\t" + crosslink.toReport(siteA_A[i], siteB_B[j]) + "\t" + precursorMassError;
-				
-						for (int k = 0; k < overallScores.length; k++)
-							tempoutput[current] += "\t" + localScore[k];
-				
-						current++;
-					}
+					pairA[current] = i;
+					pairB[current++] = j;
 				}
-			
+				
 				for (int i = 0; i < siteA_B.length; i++) // A_B to B_A
 				for (int j = 0; j < siteB_A.length; j++)
 				{
-					localScore = computeScore(siteA_B[i], siteB_A[j]);
-					
-					if (localScore[localScore.length - 1] >= param.minScoreSite)
+					pairA[current] = siteA_A.length + i;
+					pairB[current++] = siteB_B.length + j;
+				}
+				
+				double[][] localScores = computeSiteScores(sitesA, sitesB, pairA, pairB); // compute GM score
+				current = 1;
+				
+				for (int k = 0; k < numPossibility; k++)
+				{
+					if (localScores[k][overallScores.length - 1] >= param.minScoreSite)
 					{
-						tempoutput[current] = report + "\t" + crosslink.toReport(siteA_B[i], siteB_A[j]) + "\t" + precursorMassError;
-					
-					
-						for (int k = 0; k < overallScores.length; k++)
-							tempoutput[current] += "\t" + localScore[k];
-					
+						tempoutput[current] = report + "\t" + crosslink.toReport(sitesA[pairA[k]], sitesB[pairB[k]]) + "\t" + precursorMassError;
+						
+						for (int i = 0; i < overallScores.length; i++)
+							tempoutput[current] += "\t" + localScores[k][i];
+						
 						current++;
 					}
 				}
@@ -515,196 +464,155 @@ public class SpectrumMatcher implements Runnable
 		}
 	}
 
-	public void run()
+	// match a derived ion of ladder entry 'ion' within its charge state range, return whether any peak is matched
+	public boolean matchFragment(int ion, int variant, int[] chargeRange)
 	{
-		FragmentIonStruct currentFragment = null;
-		ArrayList<FragmentIonStruct> tempFragments = null;
-		MatchedFragmentStruct tempMatch = null;
-		ArrayList<MatchedFragmentStruct> tempMatchList = null;
-		ArrayList<Integer> matchedID = null;
-		ArrayList<ChargedPeakStruct> sortedChargedPeaks = currentSpectrum.getSortedChargedPeaks(param);
-		ChargedPeakStruct tempChargedPeak;
-		Double[] sortedMasses = null;
-		double massTolerance = param.fragmentTolerance, massError;
-		boolean found;
-		int[] chargeRange;
-		
-		ArrayList<Integer[]> sortedMassedIDAll = new ArrayList<Integer[]>();
-		ArrayList<Double[]> sortedMassesAll = new ArrayList<Double[]>();
-		Double[] tempSortedMasses = null;
-		Integer[] tempSortedID = null;
-		
-		// System.out.println(sortedChargedPeaks.size());
-		
-		// debug
-		/*
-		if (currentSpectrum.precursor.scanNumber == 6239 && isCrosslink)
-		{
-			HelperFunctions.debug("crosslink", crosslink);
-			HelperFunctions.debug("currentFragment", fragmentedIons);
-		}
-		*/
-		
-		try
+		double mass = ladder.getMass(ion, variant) + MassInfo.proton, massError, massTolerance;
+		double[] tempSortedMasses;
+		int[] tempSortedID;
+		int position;
+		boolean found = false;
+
+		if (param.isHighResFragmentTolerance) // ppm, charge state doesn't matter
 		{
-			if (param.isHighResFragmentTolerance) // ppm, charge state doesn't matter
+			if (MassMatcher.match(sortedMasses, mass, param.fragmentTolerance, matchedRange) > 0)
 			{
-				sortedMasses = HelperFunctions.getMassArray(sortedChargedPeaks);
-
-				while (!fragmentedIons.empty()) // repeat until the stack is empty
+				for (int i = matchedRange[0]; i < matchedRange[1]; i++) // add match result to scoring context
 				{
-					currentFragment = fragmentedIons.pop();
-					chargeRange = HelperFunctions.getChargeRange(currentFragment, currentSpectrum.precursor.chargeState);
-					matchedID = MassMatcher.match(sortedMasses, currentFragment.mass + MassInfo.proton, massTolerance);
-					found = false;
-
-					if (matchedID.size() > 0)
+					if (chargedPeakCharges[i] >= chargeRange[0] && chargedPeakCharges[i] <= chargeRange[1]) // within allowable charge state range
 					{
-						for (int i = 0; i < matchedID.size(); i++) // add match result to global map
-						{
-							tempChargedPeak = sortedChargedPeaks.get(matchedID.get(i).intValue());
-
-							if (tempChargedPeak.chargeState >= chargeRange[0] && tempChargedPeak.chargeState <= chargeRange[1]) // within allowable charge state range
-							{
-								massError = HelperFunctions.getppmError(currentFragment.mass + MassInfo.proton, tempChargedPeak.massWithOneCharge);
-								tempMatch = new MatchedFragmentStruct(massError, currentFragment, tempChargedPeak.chargeState);
-								
-								if (matchedMap.containsKey(new Integer(tempChargedPeak.peakID)))
-									matchedMap.get(new Integer(tempChargedPeak.peakID)).add(tempMatch);
-								else
-								{
-									tempMatchList = new ArrayList<MatchedFragmentStruct>();
-									tempMatchList.add(tempMatch);
-									matchedMap.put(new Integer(tempChargedPeak.peakID), tempMatchList);
-								}
-																
-								found = true;
-							}
-						}
+						massError = HelperFunctions.getppmError(mass, sortedMasses[i]);
+						context.addMatch(chargedPeakIDs[i], massError, ladder, ion, variant, chargedPeakCharges[i]);
+						found = true;
 					}
+				}
+			}
+		}
 
-					// add all neutral losses and a-ion to applicable major fragments
-					// only allow neutral losses to be considered for identified major ions
-					// always allow precursor
-					if ((found && currentFragment.isUnmodifiedABYIon()) || currentFragment.isPrecursor())
-					{
-						// a-ion
-						if (currentFragment.canHaveAion(param))
-							fragmentedIons.push(new FragmentIonStruct(currentFragment, "CO"));
-
-						// others
-						tempFragments = new ArrayList<FragmentIonStruct>();
-						tempFragments.add(currentFragment); // starting point
-						generateAllNeutralLosses(0, currentFragment, tempFragments);
+		else // Da mass tolerance, charge state matters
+		{
+			for (int z = chargeRange[0]; z <= chargeRange[1]; z++) // only consider possible charge states
+			{
+				tempSortedID = currentSpectrum.getChargedPeakPositions(z, param); // masses split according to charge state, memoized
+				tempSortedMasses = currentSpectrum.getSinglyChargedMass(z, param);
+				massTolerance = param.fragmentTolerance * z * 1000000 / mass;
 
-						for (int i = 1; i < tempFragments.size(); i++) // skip the source
-							fragmentedIons.push(tempFragments.get(i));
-					}
-				}
-				
-				// debug
-				/*
-				if (currentSpectrum.precursor.scanNumber == 6239 && isCrosslink)
+				if (MassMatcher.match(tempSortedMasses, mass, massTolerance, matchedRange) > 0)
 				{
-					HelperFunctions.debug("crosslink", crosslink);
-					HelperFunctions.debug("currentSpectrum", currentSpectrum);
+					for (int i = matchedRange[0]; i < matchedRange[1]; i++) // add match result to scoring context
+					{
+						position = tempSortedID[i];
+						massError = HelperFunctions.getppmError(mass, sortedMasses[position]);
+						context.addMatch(chargedPeakIDs[position], massError, ladder, ion, variant, z);
+						found = true;
+					}
 				}
-				*/
 			}
+		}
 
-			else // Da mass tolerance, charge state matters
-			{
-				for (int z = 1; z <= currentSpectrum.precursor.chargeState; z++) // split masses according to charge state
-					HelperFunctions.getMassArray(sortedChargedPeaks, z, sortedMassedIDAll, sortedMassesAll);
+		return found;
+	}
 
-				// System.out.println(sortedMassedIDAll);
-				// System.out.println(sortedMassesAll);
+	// match all neutral losses form of a ladder entry on top of 'variant'
+	// latest generated form first, i.e. most losses, same as the former stack-based order that match ties rely on
+	public void matchNeutralLosses(int ion, int variant, int[] chargeRange)
+	{
+		int flags = ladder.flags[ion];
+		int repeatCount = param.numNeutralLoss; // repeat water and ammonia according to 'ParamStruct'
 
-				while (!fragmentedIons.empty()) // repeat until the stack is empty
-				{
-					currentFragment = fragmentedIons.pop();
-					// System.out.println(currentFragment);
-					chargeRange = HelperFunctions.getChargeRange(currentFragment, currentSpectrum.precursor.chargeState);
-					found = false;
+		if (FragmentLadderStruct.isPrecursor(ladder.type[ion]))
+			repeatCount = repeatCount * 2; // double for precursor
 
-					for (int z = chargeRange[0]; z <= chargeRange[1]; z++) // only consider possible charge states
-					{
-						tempSortedID = sortedMassedIDAll.get(z - 1);
-						tempSortedMasses = sortedMassesAll.get(z - 1);
-						// HelperFunctions.debug("tempSortedMasses", tempSortedMasses);
-						// HelperFunctions.debug("tempSortedMasses", tempSortedID);
-						massTolerance = param.fragmentTolerance * z * 1000000 / (currentFragment.mass + MassInfo.proton);
-						matchedID = MassMatcher.match(tempSortedMasses, currentFragment.mass + MassInfo.proton, massTolerance);
-						// System.out.println(matchedID.size());
-						
-						/*
-						if (currentSpectrum.precursor.scanNumber == 1047 && currentFragment.getMajorTag().equals("Bb-2") && currentFragment.isMajorIon() && !currentFragment.isCrosslink)
-						{
-							HelperFunctions.debug("currentFragment", currentFragment);
-							HelperFunctions.debug("charge: " + z);
-							HelperFunctions.debug("masses", tempSortedMasses);
-						}
-						*/
+		int numWater = ((flags & NeutralLossGenerator.waterFlag) != 0) ? repeatCount + 1 : 1; // number of choices for each loss
+		int numAmmonia = ((flags & NeutralLossGenerator.ammoniaFlag) != 0) ? repeatCount + 1 : 1;
+		int numMetOx = ((flags & NeutralLossGenerator.metOxFlag) != 0) ? 2 : 1;
 
-						if (matchedID.size() > 0)
-						{
-							for (int i = 0; i < matchedID.size(); i++) // add match result to global map
-							{
-								tempChargedPeak = sortedChargedPeaks.get(tempSortedID[matchedID.get(i).intValue()].intValue());
-								massError = HelperFunctions.getppmError(currentFragment.mass + MassInfo.proton, tempChargedPeak.massWithOneCharge);
-								tempMatch = new MatchedFragmentStruct(massError, currentFragment, z);
-								
-								if (matchedMap.containsKey(new Integer(tempChargedPeak.peakID)))
-									matchedMap.get(new Integer(tempChargedPeak.peakID)).add(tempMatch);
-								else
-								{
-									tempMatchList = new ArrayList<MatchedFragmentStruct>();
-									tempMatchList.add(tempMatch);
-									matchedMap.put(new Integer(tempChargedPeak.peakID), tempMatchList);
-								}
-								
-								found = true;
-							}
-						}
-					}
+		for (int i = numWater * numAmmonia * numMetOx - 1; i > 0; i--) // skip the source
+			matchFragment(ion, variant | FragmentLadderStruct.getVariant(i % numWater, (i / numWater) % numAmmonia, i >= numWater * numAmmonia), chargeRange);
+	}
 
-					// add all neutral losses and a-ion to applicable major fragments
-					// only allow neutral losses to be considered for identified major ions
-					// always allow precursor
-					if ((found && currentFragment.isUnmodifiedABYIon()) || currentFragment.isPrecursor())
-					{
-						// System.out.println(currentFragment);
-						if (currentFragment.isMajorIon()) // add C13 peak for low-res major b or y ion
-							fragmentedIons.push(new FragmentIonStruct(currentFragment, "C13"));
+	// whether a candidate scoring 'score' is reported, as target list entry or text output
+	public boolean canReport(double score)
+	{
+		if (param.outputTargetList)
+			return isCrosslink && score >= param.minScoreTargetList; // pass score threshold
+		
+		return score > 0;
+	}
+	
+	// highest GM score the candidate can still reach once only unmodified b and y ions are matched
+	// ion coverage counts unmodified b and y ions only, so it is already final, other matches can at most cover every scorable peak
+	public double getScoreUpperBound()
+	{
+		double[] scorableStat = currentSpectrum.getScorablePeakAndInt(param);
+		
+		return Math.pow((scorableStat[0] / globalSpectrumStat[0]) * (scorableStat[1] / globalSpectrumStat[1]) * overallScores[8], 1.0 / 3);
+	}
+	
+	public void run()
+	{
+		if (!canReport(1)) // not even a perfect score, i.e. linear peptide for target list
+			return;
+		
+		sortedMasses = currentSpectrum.getSinglyChargedMass(param); // charged peaks, memoized on the spectrum
+		chargedPeakIDs = currentSpectrum.getChargedPeakIDs(param);
+		chargedPeakCharges = currentSpectrum.getChargedPeakCharges(param);
+		context.reset(currentSpectrum.length());
+		boolean[] found = context.getIonFound(ladder.size);
+		int[] chargeRange;
+		byte type;
+		
+		try
+		{
+			// phase one, unmodified b and y ions only
+			for (int ion = ladder.size - 1; ion >= 0; ion--) // latest generated first, see 'matchNeutralLosses()'
+			{
+				if (!FragmentLadderStruct.isPrecursor(ladder.type[ion]))
+					found[ion] = matchFragment(ion, 0, HelperFunctions.getChargeRange(ladder.type[ion], ladder.ionID[ion], currentSpectrum.precursor.chargeState));
+			}
+			
+			context.sortTouchedPeaks();
+			computeOverallScores();
+			
+			if (!canReport(getScoreUpperBound())) // cannot pass score threshold, skip neutral losses and site scoring
+				return;
+			
+			// phase two, precursor and derived ions, in the same order as if matched along with their major ions
+			// matches of each peak end up in the same order either way, as major ions always come first
+			for (int ion = ladder.size - 1; ion >= 0; ion--)
+			{
+				type = ladder.type[ion];
+				chargeRange = HelperFunctions.getChargeRange(type, ladder.ionID[ion], currentSpectrum.precursor.chargeState);
 
-						// a-ion
-						if (currentFragment.canHaveAion(param))
-							fragmentedIons.push(new FragmentIonStruct(currentFragment, "CO"));
+				// add all neutral losses and a-ion to applicable major fragments
+				// only allow neutral losses to be considered for identified major ions
+				// always allow precursor
+				if (FragmentLadderStruct.isPrecursor(type))
+					matchFragment(ion, 0, chargeRange);
+				else if (!found[ion])
+					continue;
 
-						// others
-						tempFragments = new ArrayList<FragmentIonStruct>();
-						tempFragments.add(currentFragment); // starting point
-						generateAllNeutralLosses(0, currentFragment, tempFragments);
+				matchNeutralLosses(ion, 0, chargeRange);
 
-						for (int i = 1; i < tempFragments.size(); i++) // skip the source
-						 	fragmentedIons.push(tempFragments.get(i));
-					}
-				}
+				// a-ion, b -> a has priority over other modification
+				if (FragmentLadderStruct.getIonType(type) == 'b' && ladder.ionID[ion] <= param.numAion && matchFragment(ion, FragmentLadderStruct.aIonVariant, chargeRange))
+					matchNeutralLosses(ion, FragmentLadderStruct.aIonVariant, chargeRange);
+
+				if (!param.isHighResFragmentTolerance && !FragmentLadderStruct.isPrecursor(type)) // add C13 peak for low-res major b or y ion
+					matchFragment(ion, FragmentLadderStruct.c13Variant, chargeRange);
 			}
 			
-			// sort all matches for each peak, favor major ion, then sort by mass error
-			for (Iterator<Integer> iter = matchedMap.keySet().iterator(); iter.hasNext();)
-				Collections.sort(matchedMap.get(iter.next()), new MatchedFragmentComparator());
-			
-			// System.out.println(matchedMap);
+			context.sortTouchedPeaks(); // matches of each peak are already sorted, favor major ion, then sort by mass error
 			
 			computeOverallScores(); // compute global scores
 			
-			if (overallScores[overallScores.length - 1] >= param.minScoreTargetList && isCrosslink && param.outputTargetList) // pass score threshold
-				HelperFunctions.appendToFile(".\\temp\\" + param.outputFileName + "_targetList.temp", toTargetListEntry());
-			
-			if (overallScores[overallScores.length - 1] > 0 && !param.outputTargetList)
-				outputText(); // output text file
+			if (canReport(overallScores[overallScores.length - 1]))
+			{
+				if (param.outputTargetList)
+					HelperFunctions.appendToFile(".\\temp\\" + param.outputFileName + "_targetList.temp", toTargetListEntry());
+				else
+					outputText(); // output text file
+			}
 		}
 
 		catch (Exception e)
@@ -59,7 +59,7 @@ public class XlinkMiner
 		// WRITE ONLY MATCHED PEPTIDES
 		    proteinproc.digest(param.protease); // compute cleavage site
 			PrecursorMatcher precursormatch = new PrecursorMatcher();
-			precursormatch.importObservedMasses(precursorInfo); // process precursor masses
+			precursormatch.importObservedMasses(precursorInfo, param); // process precursor masses
 			
 			proteinproc.digest(param.protease); // compute cleavage site
 			proteinproc.generatePeptidesAndMatch(precursormatch, param); // generate peptides and match precursor mass at once
@@ -236,8 +236,8 @@ public class XlinkMiner
 		{
 			for (int i = 0; i < param.numCPU; i++)
 			{
-				Files.deleteIfExists(Paths.get(".\\temp\\peptide-thread-" + i + ".temp"));
-				Files.deleteIfExists(Paths.get(".\\temp\\crosslink-thread-" + i + ".temp"));
+				deleteTempFile(param.getCandidateFileName(false, i));
+				deleteTempFile(param.getCandidateFileName(true, i));
 			}
 			
 			if (param.outputTargetList)
@@ -247,6 +247,16 @@ public class XlinkMiner
 		catch (Exception e)
 		{ HelperFunctions.debug("XlinkMiner::clearTempFolder", HelperFunctions.getStackTrace(e)); }
 	}
+
+	// delete a temp file now, or at exit if it cannot be deleted yet
+	// Windows keeps a memory-mapped file until its mapping is collected, the next run uses new names anyway
+	public void deleteTempFile(String fname)
+	{
+		File file = new File(fname);
+
+		if (file.exists() && !file.delete())
+			file.deleteOnExit();
+	}
 	
 	/*
 	// expect at least 3 inputs: [path to mzXML files folder, path to candidate file, and forward database] + (decoy database and/or parameter file)
@@ -0,0 +1,134 @@
+// isotope distributions of averagine, shared by de-isotoping and charge state deconvolution
+// computed once at class init for every nominal mass up to 'maxTableMass', looked up afterward
+// rounded averagine compositions only grow with mass, so the number of atoms identifies a composition
+// and a lookup returns exactly what a direct computation at that mass would
+public class AveragineTable
+{
+	static final double[] averagineRatio = {4.9384, 7.7583, 1.3577, 1.4773, 0.0417}; // ratio for C, H, N, O, S
+	static final double averagineWeight = averagineRatio[0] * MassInfo.getMass("C", false) + averagineRatio[1] * MassInfo.getMass("H", false) +
+										  averagineRatio[2] * MassInfo.getMass("N", false) + averagineRatio[3] * MassInfo.getMass("O", false) +
+										  averagineRatio[4] * MassInfo.getMass("S", false); // averagine molecular weight
+
+	public static final int maxIsotope = 10; // number of isotope peaks in each distribution
+	static final int maxTableMass = 10000;
+	static final double[][] isotopeTable = buildIsotopeTable(); // P(isotope = +n neutrons) for each number of atoms, null if not tabulated
+
+	public AveragineTable()
+	{}
+
+	// return P(isotope = +n neutrons) for n < 'maxIsotope' at a neutral mass, shared, do not modify
+	public static double[] getIsotopeProbs(double mass)
+	{
+		double fold = mass / averagineWeight;
+		int numAtom = 0;
+
+		for (int i = 0; i < 5; i++)
+			numAtom += (int) Math.round(averagineRatio[i] * fold);
+
+		if (numAtom >= 0 && numAtom < isotopeTable.length && isotopeTable[numAtom] != null)
+			return isotopeTable[numAtom];
+
+		return computeIsotopeProbs(getComposition(fold)); // beyond the table, or a composition that only exists between two nominal masses
+	}
+
+	// compute ideal envelope's intensity ratio at a neutral mass, into the first 'length' entries of 'distribution'
+	// 'length' is at most 'maxIsotope', entries sum to 1
+	public static void getDistribution(double mass, int length, double[] distribution)
+	{
+		double[] isotopeProbs = getIsotopeProbs(mass);
+		double sum = 0;
+
+		for (int i = 0; i < length; i++)
+		{
+			distribution[i] = isotopeProbs[i];
+			sum += distribution[i];
+		}
+
+		for (int i = 0; i < length; i++)
+			distribution[i] /= sum;
+	}
+
+	// rounded [C, H, N, O, S] composition at 'fold' times averagine
+	static int[] getComposition(double fold)
+	{
+		int[] composition = new int[5];
+
+		for (int i = 0; i < 5; i++)
+			composition[i] = (int) Math.round(averagineRatio[i] * fold);
+
+		return composition;
+	}
+
+	// tabulate isotope distribution of averagine composition at each nominal mass
+	static double[][] buildIsotopeTable()
+	{
+		int[] composition = getComposition(maxTableMass / averagineWeight);
+		double[][] table = new double[composition[0] + composition[1] + composition[2] + composition[3] + composition[4] + 1][];
+
+		for (int mass = 0; mass <= maxTableMass; mass++)
+		{
+			composition = getComposition(mass / averagineWeight);
+			int numAtom = composition[0] + composition[1] + composition[2] + composition[3] + composition[4];
+
+			if (table[numAtom] == null)
+				table[numAtom] = computeIsotopeProbs(composition);
+		}
+
+		return table;
+	}
+
+	static double[] computeIsotopeProbs(int[] composition)
+	{
+		double[] isotopeProbs = new double[maxIsotope];
+
+		for (int i = 0; i < maxIsotope; i++)
+			isotopeProbs[i] = isotopeProb(composition, i);
+
+		return isotopeProbs;
+	}
+
+	// compute P(isotope = +n neutrons) given [C, H, N, O, S] composition
+	// consider only C13 (+1), N15 (+1), and O18 (+2)
+	public static double isotopeProb(int[] comp, int n)
+	{
+		// if we don't have enough atom to generate the isotope, return zero
+		if (comp[0] + comp[2] + 2*comp[3] < n)
+			return 0;
+
+		double[] isoProbs = {0.01109, 0.00366, 0.00201}; // C13, N15, and O18 existences in nature
+		double prob = 0, temp;
+
+		// iterate over all possible n-object distribution using "star & bar" technique
+		for (int n1 = 1; n1 < n + 2; n1++)
+		for (int n2 = n1 + 1; n2 < n + 3; n2++)
+		{
+			// there will be (n1 - 1) of C13, (n2 - n1 - 1) of N15, and (n + 3 - n2 - 1)/2 of O18 for a grand total of exactly n neutrons
+			// proceed only if we have an integer number of O18 and does not exceed any atomic composition
+			if ((n - n2) % 2 == 0 && n1 < comp[0] + 2 && n2 - n1 < comp[2] + 2 && (n - n2) / 2 < comp[3])
+			{
+				temp = logBinomial(comp[0], n1 - 1, isoProbs[0]) + logBinomial(comp[2], n2 - n1 - 1, isoProbs[1]) +
+					logBinomial(comp[3], (n - n2) / 2 + 1, isoProbs[2]);
+
+				prob += Math.exp(temp);
+			}
+		}
+
+		return prob;
+	}
+
+	// compute log bionomial term (n choose k) (1 - a)^(n-k) a^k [x^k]
+	public static double logBinomial(int n, int k, double a)
+	{
+		double result = 0;
+
+		result += Math.log(1 - a) * (n - k) + Math.log(a) * k;
+
+		if (k == 0)
+			return result;
+
+		for (int i = 1; i < k + 1; i++)
+			result += Math.log(n + 1 - i) - Math.log(i);
+
+		return result;
+	}
+}
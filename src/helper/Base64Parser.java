@@ -1,136 +1,108 @@
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.Iterator;
 
 // collection of functions involved in base64 encoding and decoding
 public class Base64Parser
 {
 	public static final String base64characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	static final byte[] decodeTable = buildDecodeTable();
 	
 	public Base64Parser()
 	{}
 
-	// decode base64 into array of 32-bit integers
-	public static int[] base64toInteger(String base64)
+	// 6-bit value of each base64 character, -1 for anything else
+	static byte[] buildDecodeTable()
 	{
-		int[] result = new int[base64.length() * 6 / 32]; // ignore the tail
-		int current = 0;
-		String binaryString = "";
+		byte[] table = new byte[256];
+		Arrays.fill(table, (byte) -1);
 
-		for (int i = 0; i < base64.length() && current < result.length; i++)
-		{
-			binaryString += decodeBase64(base64.charAt(i));
-			// System.out.println(binaryString.length());
-
-			if (binaryString.length() >= 32)
-			{
-				result[current] = (int) Long.parseLong(binaryString.substring(0, 32), 2);
-				binaryString = binaryString.substring(32, binaryString.length());
-				current++;
-			}
-		}
+		for (int i = 0; i < base64characters.length(); i++)
+			table[base64characters.charAt(i)] = (byte) i;
 
-		return result;
+		return table;
 	}
 
-	// convert 32-bit or 64-bit binary to floating point
-	public static double binarytoDouble(String binary)
+	// decode base64 characters from 'src[start, end)' into 'dst', return number of decoded bytes
+	// 'dst' needs at least 3/4 of the input length, and may be 'src' itself
+	// whitespace and other non-base64 characters are skipped, decoding stops at '=' padding
+	public static int decodeBase64(byte[] src, int start, int end, byte[] dst)
 	{
-		if (binary.length() == 32) // single-precision
-		{
-			double sign = binary.charAt(0) - 48.0;
-			double exponent = 0.0;
-			double factor = 1.0;
-
-			for (int i = 0; i < 8; i++)
-			{
-				exponent += factor * (binary.charAt(8 - i) - 48.0);
-				factor *= 2;
-			}
+		int length = 0, i = start, bits = 0, numBit = 0, value;
 
-			double significand = 0;
-			factor = 0.5;
+		while (i + 4 <= end) // fast path, whole groups of four characters
+		{
+			value = (decodeTable[src[i] & 0xff] << 18) | (decodeTable[src[i + 1] & 0xff] << 12) | (decodeTable[src[i + 2] & 0xff] << 6) | decodeTable[src[i + 3] & 0xff];
 
-			for (int i = 0; i < 23; i++)
-			{
-				significand += factor * (binary.charAt(9 + i) - 48.0);
-				factor /= 2;
-			}
+			if (value < 0) // invalid character or padding in this group
+				break;
 
-			return (1 - (2 * sign)) * (1 + significand) * (Math.pow(2.0, exponent - 127.0));
+			dst[length++] = (byte) (value >> 16);
+			dst[length++] = (byte) (value >> 8);
+			dst[length++] = (byte) value;
+			i += 4;
 		}
 
-		if (binary.length() == 64) // double-precision
+		for (; i < end; i++) // slow path, one character at a time
 		{
-			double sign = binary.charAt(0) - 48.0;
-			double exponent = 0.0;
-			double factor = 1.0;
+			value = decodeTable[src[i] & 0xff];
 
-			for (int i = 0; i < 11; i++)
+			if (value < 0)
 			{
-				exponent += factor * (binary.charAt(11 - i) - 48.0);
-				factor *= 2;
+				if (src[i] == '=')
+					break;
+
+				continue; // skip whitespace
 			}
 
-			double significand = 0;
-			factor = 0.5;
+			bits = (bits << 6) | value;
+			numBit += 6;
 
-			for (int i = 0; i < 52; i++)
+			if (numBit >= 8)
 			{
-				significand += factor * (binary.charAt(12 + i) - 48.0);
-				factor /= 2;
+				numBit -= 8;
+				dst[length++] = (byte) (bits >> numBit);
 			}
-
-			return (1 - (2 * sign)) * (1 + significand) * (Math.pow(2.0, exponent - 1023.0));
 		}
 
-		HelperFunctions.debug("Unexpected binary string length");
-		return -1;
+		return length;
 	}
 
-	// decode base64 into 2D array of double, e.g. spectrum
-	// work for either 32-bit (float) or 64-bit (double)
-	public static double[][] base64toDouble(String base64, int precision)
+	// number of (m/z, intensity) pairs in decoded peaks
+	public static int getNumPeak(int numByte, int precision)
+	{ return numByte / (precision / 4); }
+
+	// read (m/z, intensity) pairs into primitive arrays, return number of peaks
+	// byte order of 'bytes' has to be set by the caller, big-endian by default
+	public static int decodePeaks(ByteBuffer bytes, int precision, double[] mz, double[] intensity)
 	{
-		// System.out.println(base64.length());
-		// System.out.println(base64.length() * 3 / precision);
-		double[][] result = new double[base64.length() * 3 / precision][2]; // m/z and intensity
-		int current = 0;
-		String binaryString = "";
+		int numPeak = getNumPeak(bytes.remaining(), precision);
 
 		if (precision == 32) // 32-bit float
 		{
-			for (int i = 0; i < base64.length() && current < result.length; i++)
+			FloatBuffer values = bytes.asFloatBuffer();
+
+			for (int i = 0; i < numPeak; i++)
 			{
-				binaryString += decodeBase64(base64.charAt(i));
-
-				if (binaryString.length() >= 64)
-				{
-					// System.out.println(binaryString);
-					result[current][0] = binarytoDouble(binaryString.substring(0, 32));
-					result[current][1] = binarytoDouble(binaryString.substring(32, 64));
-					current++;
-					binaryString = binaryString.substring(64, binaryString.length());
-				}
+				mz[i] = values.get(2 * i);
+				intensity[i] = values.get(2 * i + 1);
 			}
 		}
 
 		else // 64-bit double
 		{
-			for (int i = 0; i < base64.length() && current < result.length; i++)
+			DoubleBuffer values = bytes.asDoubleBuffer();
+
+			for (int i = 0; i < numPeak; i++)
 			{
-				binaryString += decodeBase64(base64.charAt(i));
-
-				if (binaryString.length() >= 128)
-				{
-					// System.out.println(binaryString);
-					result[current][0] = binarytoDouble(binaryString.substring(0, 64));
-					result[current][1] = binarytoDouble(binaryString.substring(64, 128));
-					current++;
-					binaryString = binaryString.substring(128, binaryString.length());
-				}
+				mz[i] = values.get(2 * i);
+				intensity[i] = values.get(2 * i + 1);
 			}
 		}
 
-		return result;
+		return numPeak;
 	}
 
 	// convert CrosslinkStruct to base64
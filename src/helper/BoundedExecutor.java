@@ -0,0 +1,56 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// fixed-size thread pool with a bounded task queue, shared by all multi-thread stages
+// submitting blocks while the queue is full, waiting for completion blocks as well, no busy-waiting
+// threads are named 'thread-n' by 'IDThreadFactory', tasks are never run by the submitting thread since they rely on the thread name
+public class BoundedExecutor extends ThreadPoolExecutor
+{
+	public BoundedExecutor(int numThread, int queueSize)
+	{ super(numThread, numThread, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new IDThreadFactory("thread"), new BlockingPolicy()); }
+
+	// default queue size of two tasks per thread
+	public BoundedExecutor(int numThread)
+	{ this(numThread, 2 * numThread); }
+
+	// stop accepting new tasks and wait until all submitted tasks are done
+	public void shutdownAndWait()
+	{
+		shutdown();
+
+		try
+		{
+			while (!awaitTermination(1, TimeUnit.MINUTES)) {} // sleep until done, wake up once a minute
+		}
+
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			HelperFunctions.debug("BoundedExecutor", HelperFunctions.getStackTrace(e));
+		}
+	}
+
+	// block the submitting thread until there is room in the queue
+	static class BlockingPolicy implements RejectedExecutionHandler
+	{
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+		{
+			if (executor.isShutdown())
+				throw new RejectedExecutionException("Executor has been shut down");
+
+			try
+			{
+				executor.getQueue().put(r);
+			}
+
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RejectedExecutionException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,57 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// buffered writer of fixed-width binary candidate records, see 'PeptideStruct.encode()'
+// one writer per temp file, not thread-safe
+public class CandidateWriter
+{
+	static final int bufferSize = 1 << 16; // flush every 64 KB
+
+	final FileChannel channel;
+	final ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+	final int maxVarModPerPeptide;
+
+	public CandidateWriter(String fname, boolean append, int maxVarModPerPeptide) throws IOException
+	{
+		channel = new FileOutputStream(fname, append).getChannel();
+		this.maxVarModPerPeptide = maxVarModPerPeptide;
+	}
+
+	// write peptide record
+	public void write(PeptideStruct peptide) throws IOException
+	{
+		if (buffer.remaining() < PeptideStruct.getRecordLength(maxVarModPerPeptide))
+			flush();
+
+		peptide.encode(buffer, maxVarModPerPeptide);
+	}
+
+	// write crosslink record
+	public void write(PeptideStruct peptideA, PeptideStruct peptideB) throws IOException
+	{
+		if (buffer.remaining() < CrosslinkStruct.getRecordLength(maxVarModPerPeptide))
+			flush();
+
+		peptideA.encode(buffer, maxVarModPerPeptide);
+		peptideB.encode(buffer, maxVarModPerPeptide);
+	}
+
+	// write buffered records to file
+	public void flush() throws IOException
+	{
+		buffer.flip();
+
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+
+		buffer.clear();
+	}
+
+	public void close() throws IOException
+	{
+		flush();
+		channel.close();
+	}
+}
@@ -23,6 +23,10 @@ public class CrosslinkSiteIdentifier
 		return (site1[0] && site2[1]) || (site1[1] && site2[0]);
 	}
 
+	// check if two peptides are crosslinkable, both peptides are preprocessed
+	public static boolean isCrosslinkable(boolean[] site1, boolean[] site2)
+	{ return (site1[0] && site2[1]) || (site1[1] && site2[0]); }
+
 	// check if a peptide can form loop
 	public static boolean isSelfCrosslinkable(PeptideStruct peptide, CrosslinkerStruct crosslinker)
 	{
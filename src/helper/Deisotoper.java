@@ -6,21 +6,15 @@ import java.util.Comparator;
 // de-isotope algorithm similar to that described in Senko M. et al.
 public class Deisotoper
 {
-	static final double[] averagineRatio = {4.9384, 7.7583, 1.3577, 1.4773, 0.0417}; // ratio for C, H, N, O, S
-
 	// final double[] chiSquareCutoff = {0.06, 0.45, 1.01, 1.65, 2.34, 3.07, 3.82, 4.59, 5.38, 6.18}; // cutoff at prob chance = 0.8
 	// static final double[] chiSquareCutoff = {0.15, 0.71, 1.42, 2.20, 3.00, 3.83, 4.67, 5.53, 6.39, 7.27}; // cutoff at prob chance = 0.7
 	// final double[] chiSquareCutoff = {0.27, 1.02, 1.87, 2.75, 3.66, 4.57, 5.49, 6.42, 7.36, 8.30}; // cutoff at prob chance = 0.6
 	// final double[] chiSquareCutoff = {0.46, 1.39, 2.37, 3.36, 4.35, 5.35, 6.35, 7.34, 8.34, 9.34}; // cutoff at prob chance = 0.5
 
 	// static final int maxEnvelopeLength = chiSquareCutoff.length;
-	static final int maxEnvelopeLength = 10;
+	static final int maxEnvelopeLength = 10; // at most 'AveragineTable.maxIsotope'
 	static final int minEnvelopeLength = 2;
 	static final double minAveragineCorr = 0.6; // quality criteria for matching to averagine's isotope pattern
-	
-	static final double averagineWeight = averagineRatio[0] * MassInfo.getMass("C", false) + averagineRatio[1] * MassInfo.getMass("H", false) +
-    									  averagineRatio[2] * MassInfo.getMass("N", false) + averagineRatio[3] * MassInfo.getMass("O", false) +
-    									  averagineRatio[4] * MassInfo.getMass("S", false); // averagine molecular weight
 
 	public Deisotoper()
 	{}
@@ -232,72 +226,13 @@ public class Deisotoper
 	public static double[] averagineIntensity(IsotopeEnvelopeStruct envelope, double[][] spectrum)
 	{
 		double mass = spectrum[envelope.get(0)][0] * envelope.chargeState - envelope.chargeState * MassInfo.proton;
-		double fold = mass / averagineWeight;
-		int[] newRatio = new int[5]; // rounded [C, H, N, O, S] ratio
-
-		for (int i = 0; i < 5; i++)
-			newRatio[i] = (int) Math.round(averagineRatio[i] * fold);
-
 		double[] distribution = new double[envelope.size()];
-		double sum = 0;
-
-		for (int i = 0; i < envelope.size(); i++)
-		{
-			distribution[i] = isotopeProb(newRatio, i);
-			sum += distribution[i];
-		}
 
-		for (int i = 0; i < envelope.size(); i++)
-			distribution[i] /= sum;
+		AveragineTable.getDistribution(mass, envelope.size(), distribution);
 
 		return distribution; // sum to 1
 	}
 
-	// compute P(isotope = +n neutrons) given [C, H, N, O, S] composition
-	// consider only C13 (+1), N15 (+1), and O18 (+2)
-	public static double isotopeProb(int[] comp, int n)
-	{
-		// if we don't have enough atom to generate the isotope, return zero
-		if (comp[0] + comp[2] + 2*comp[3] < n)
-			return 0;
-
-		double[] isoProbs = {0.01109, 0.00366, 0.00201}; // C13, N15, and O18 existences in nature
-		double prob = 0, temp;
-
-		// iterate over all possible n-object distribution using "star & bar" technique
-		for (int n1 = 1; n1 < n + 2; n1++)
-		for (int n2 = n1 + 1; n2 < n + 3; n2++)
-		{
-			// there will be (n1 - 1) of C13, (n2 - n1 - 1) of N15, and (n + 3 - n2 - 1)/2 of O18 for a grand total of exactly n neutrons
-			// proceed only if we have an integer number of O18 and does not exceed any atomic composition
-			if ((n - n2) % 2 == 0 && n1 < comp[0] + 2 && n2 - n1 < comp[2] + 2 && (n - n2) / 2 < comp[3])
-			{
-				temp = logBinomial(comp[0], n1 - 1, isoProbs[0]) + logBinomial(comp[2], n2 - n1 - 1, isoProbs[1]) +
-					logBinomial(comp[3], (n - n2) / 2 + 1, isoProbs[2]);
-
-				prob += Math.exp(temp);
-			}
-		}
-
-		return prob;
-	}
-
-	// compute log bionomial term (n choose k) (1 - a)^(n-k) a^k [x^k]
-	public static double logBinomial(int n, int k, double a)
-	{
-		double result = 0;
-
-		result += Math.log(1 - a) * (n - k) + Math.log(a) * k;
-
-		if (k == 0)
-			return result;
-
-		for (int i = 1; i < k + 1; i++)
-			result += Math.log(n + 1 - i) - Math.log(i);
-
-		return result;
-	}
-	
 	// mean data = 1 for both inputs
 	// compute standard Pearson correlation
 	public static double correlation(double[] observed, double[] expected)
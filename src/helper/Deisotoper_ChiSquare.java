@@ -1,295 +1,234 @@
-import java.util.ArrayList;
-import java.util.TreeSet;
 import java.util.Arrays;
-import java.util.Comparator;
 
 // de-isotope algorithm similar to that described in Senko M. et al.
+// an isotope chain links each peak to its next isotope peak at a charge state, so a candidate envelope is fully given by
+// its charge state, first peak and size, and is kept as a packed 'long' instead of an object
 public class Deisotoper_ChiSquare
 {
-	static final double[] averagineRatio = {4.9384, 7.7583, 1.3577, 1.4773, 0.0417}; // ratio for C, H, N, O, S
-
 	// final double[] chiSquareCutoff = {0.06, 0.45, 1.01, 1.65, 2.34, 3.07, 3.82, 4.59, 5.38, 6.18}; // cutoff at prob chance = 0.8
 	static final double[] chiSquareCutoff = {0.15, 0.71, 1.42, 2.20, 3.00, 3.83, 4.67, 5.53, 6.39, 7.27}; // cutoff at prob chance = 0.7
 	// final double[] chiSquareCutoff = {0.27, 1.02, 1.87, 2.75, 3.66, 4.57, 5.49, 6.42, 7.36, 8.30}; // cutoff at prob chance = 0.6
 	// final double[] chiSquareCutoff = {0.46, 1.39, 2.37, 3.36, 4.35, 5.35, 6.35, 7.34, 8.34, 9.34}; // cutoff at prob chance = 0.5
 
-	static final int maxEnvelopeLength = chiSquareCutoff.length;
-	static final double averagineWeight = averagineRatio[0] * MassInfo.getMass("C", false) + averagineRatio[1] * MassInfo.getMass("H", false) +
-    									  averagineRatio[2] * MassInfo.getMass("N", false) + averagineRatio[3] * MassInfo.getMass("O", false) +
-    									  averagineRatio[4] * MassInfo.getMass("S", false); // averagine molecular weight
+	static final int maxEnvelopeLength = chiSquareCutoff.length; // at most 'AveragineTable.maxIsotope'
 
 	public Deisotoper_ChiSquare()
 	{}
 
-	public static double[][] deisotope(double[][] spectrum, int precursorCharge, ParamStruct param)
+	// de-isotope spectrum in place, peaks are expected in ascending m/z order
+	// each validated envelope becomes one peak at its monoisotopic m/z with summed intensity and known charge state
+	public static void deisotope(SpectrumStruct spectrum, ParamStruct param)
 	{
-		double currentMZ, nextMZ;
-    	int nextPeak;
-    	boolean[] assigned = new boolean[spectrum.length]; // keep track of peaks that are already assigned to an envelope at each charge state level
-    	boolean foundEnvelope;
-    	IsotopeEnvelopeStruct currentCandidate;
-
-    	TreeSet<IsotopeEnvelopeStruct> candidateEnvelopes = new TreeSet<IsotopeEnvelopeStruct>(new IsotopeEnvelopeComparator()); // sorted list of candidate envelopes
-
-    	// for each charge state, we generate candidate envelopes of the form "chargeState,peak1,peak2,...,peakN"
-    	for (int charge = precursorCharge; charge > 0; charge--)
-    	{
-    		// reset "assigned" indicator
-    		for (int i = 0; i < spectrum.length; i++)
-    			assigned[i] = false;
-
-    		// for each starting peak
-    		for (int currentPeak = 0; currentPeak < spectrum.length - 1; currentPeak++)
-    		{
-    			foundEnvelope = false; // starting a new search for candidate envelope
-
-    			// continue only if the current peak hasn't been used for this charge state
-    			// no need to update status for 'currentPeak' since we move forward only
-    			if (!assigned[currentPeak])
-    			{
-    				// initialize the candidate string format and m/z values
-    				currentCandidate = new IsotopeEnvelopeStruct(charge, currentPeak);
-    				currentMZ = spectrum[currentPeak][0];
-    				nextPeak = currentPeak + 1;
-    				nextMZ = spectrum[nextPeak][0];
-
-    				// repeat until the envelope can't be extended (no m/z within window or end of spectrum table)
-    				while (currentCandidate.size() < maxEnvelopeLength && (nextMZ - currentMZ < (MassInfo.neutron / charge) + (currentMZ * param.isotopeWindowppm * 0.000001)))
+		double[] mz = spectrum.mz, intensity = spectrum.intensity;
+		int numPeak = mz.length, precursorCharge = spectrum.precursor.chargeState;
+
+		// isotope chain of each charge state, 'nextPeak' is -1 at the end of a chain
+		int[] nextPeak = new int[precursorCharge * numPeak];
+		int[] chainLength = new int[precursorCharge * numPeak]; // number of peaks from each peak to the end of its chain, at most 'maxEnvelopeLength'
+		double currentMZ;
+		int base, next;
+
+		for (int charge = 1; charge <= precursorCharge; charge++)
+		{
+			base = (charge - 1) * numPeak;
+
+			for (int currentPeak = numPeak - 1; currentPeak >= 0; currentPeak--) // backward, chain length of later peaks is known
+			{
+				currentMZ = mz[currentPeak];
+				next = -1;
+
+				// the first peak within the isotope window, stop once beyond the window
+				for (int i = currentPeak + 1; i < numPeak && (mz[i] - currentMZ < (MassInfo.neutron / charge) + (currentMZ * param.isotopeWindowppm * 0.000001)); i++)
+				{
+					if (mz[i] - currentMZ > (MassInfo.neutron / charge) - (currentMZ * param.isotopeWindowppm * 0.000001))
 					{
-						// if nextMZ differ from currentMZ within reasonable error from (MassInfo.neutron / charge), then we extend the envelope
-						if (nextMZ - currentMZ > (MassInfo.neutron / charge) - (currentMZ * param.isotopeWindowppm * 0.000001))
-						{
-							// move currentMZ along and update envelope information
-							foundEnvelope = true;
-							assigned[nextPeak] = true;
-							currentCandidate.add(nextPeak);
-							currentMZ = nextMZ;
-						}
-
-						nextPeak++;
-
-						// if we hit the end of the spectrum, terminate
-						if (nextPeak == spectrum.length)
-							break;
-
-						nextMZ = spectrum[nextPeak][0];
+						next = i;
+						break;
 					}
+				}
 
-					// record the candidate envelope
-					if (foundEnvelope)
-						candidateEnvelopes.add(currentCandidate);
-    			}
-    		}
-    	}
-
-    	ArrayList<IsotopeEnvelopeStruct> validatedEnvelopes = validateEnvelope(candidateEnvelopes, spectrum); // list of validated envelopes + unused peaks at the end
-    	int numPeak = validatedEnvelopes.size() - 1 + validatedEnvelopes.get(validatedEnvelopes.size() - 1).size();
-    	double intensity;
-    	IsotopeEnvelopeStruct envelope;
-
-    	double[][] deisotoped = new double[numPeak][3];
-
-    	for (int i = 0; i < validatedEnvelopes.size() - 1; i++) // extract envelopes
-    	{
-			envelope = validatedEnvelopes.get(i);
-			intensity = 0;
-
-			for (int j = 0; j < envelope.size(); j++) // sum intensity
-				intensity += spectrum[envelope.get(j)][1];
-
-			deisotoped[i][0] = spectrum[envelope.get(0)][0]; // monoisotopic mz
-			deisotoped[i][1] = intensity;
-			deisotoped[i][2] = envelope.chargeState;
-    	}
-
-    	// peaks with no charge state
-    	envelope = validatedEnvelopes.get(validatedEnvelopes.size() - 1);
-
-    	for (int i = 0; i < envelope.size(); i++)
-    	{
-    		deisotoped[validatedEnvelopes.size() + i - 1][0] = spectrum[envelope.get(i)][0];
-    		deisotoped[validatedEnvelopes.size() + i - 1][1] = spectrum[envelope.get(i)][1];
-    	}
-
-    	Arrays.sort(deisotoped, new Comparator<double[]>()
-    	{
-    		public int compare(double[] entry1, double[] entry2) // compare based on mz value
-    		{
-    			if (entry1[0] > entry2[0])
-    				return 1;
-    			if (entry1[0] < entry2[0])
-    				return -1;
-
-    			return 0;
-    		}
-    	});
-
-		return deisotoped;
-	}
-
-	// validate candidate envelopes from largest to smallest
-	// check against averagine intensity distribution
-	// also make sure not to use the same peak multiple time
-	public static ArrayList<IsotopeEnvelopeStruct> validateEnvelope(TreeSet<IsotopeEnvelopeStruct> candidateEnvelopes, double[][] spectrum)
-	{
-		ArrayList<IsotopeEnvelopeStruct> validatedEnvelopes = new ArrayList<IsotopeEnvelopeStruct>();
-		double[] observedIntDistribution;
-		double[] theoIntDistribution;
-		double temp;
-		boolean[] assigned = new boolean[spectrum.length]; // track peak usage
+				nextPeak[base + currentPeak] = next;
+				chainLength[base + currentPeak] = (next < 0) ? 1 : Math.min(chainLength[base + next] + 1, maxEnvelopeLength);
+			}
+		}
 
-		IsotopeEnvelopeStruct envelope = candidateEnvelopes.pollFirst();
-		IsotopeEnvelopeStruct[] tempenvelope;
-		boolean broken;
+		// candidate envelopes grouped by size, each sorted by packed key later
+		long[][] candidates = new long[maxEnvelopeLength + 1][16];
+		int[] numCandidate = new int[maxEnvelopeLength + 1];
+		boolean[] assigned = new boolean[numPeak]; // keep track of peaks that are already assigned to an envelope at each charge state level
+		int peak;
 
-		while (envelope != null) // repeat until all candidates were analyzed
+		// for each charge state, the longest chain from each peak that is not already part of an earlier chain
+		for (int charge = precursorCharge; charge > 0; charge--)
 		{
-			broken = false;
+			base = (charge - 1) * numPeak;
+			Arrays.fill(assigned, false);
 
-			for (int i = 0; i < envelope.size(); i++) // check whether all peaks are available
+			for (int currentPeak = 0; currentPeak < numPeak - 1; currentPeak++)
 			{
-				if (assigned[envelope.get(i)])
+				if (!assigned[currentPeak] && nextPeak[base + currentPeak] >= 0)
 				{
-					tempenvelope = envelope.split(i);
-					broken = true;
+					peak = currentPeak;
 
-					if (tempenvelope[0] != null)
-						candidateEnvelopes.add(tempenvelope[0]);
-					if (tempenvelope[1] != null)
-						candidateEnvelopes.add(tempenvelope[1]); // add smaller envelopes back in
+					for (int i = 1; i < chainLength[base + currentPeak]; i++)
+					{
+						peak = nextPeak[base + peak];
+						assigned[peak] = true;
+					}
 
-					break;
+					addCandidate(candidates, numCandidate, precursorCharge, charge, currentPeak, chainLength[base + currentPeak]);
 				}
 			}
+		}
 
-			if (!broken) // continue only if passed
-			{
-				theoIntDistribution = averagineIntensity(envelope, spectrum); // obtain averagine distribution
-				observedIntDistribution = new double[envelope.size()];
-				temp = 0;
+		// validate candidate envelopes from largest to smallest, then from higher charge state, then from lower starting peak
+		// check against averagine intensity distribution, also make sure not to use the same peak multiple times
+		// smaller envelopes derived from a failed one always go to a later size group
+		boolean[] used = assigned;
+		Arrays.fill(used, false);
 
-				for (int i = 0; i < envelope.size(); i++) // extract intensity
-				{
-					observedIntDistribution[i] = spectrum[envelope.get(i)][1];
-					temp += observedIntDistribution[i];
-				}
+		int[] envelopeStart = new int[numPeak / 2 + 1], envelopeCharge = new int[numPeak / 2 + 1], envelopeSize = new int[numPeak / 2 + 1];
+		int numEnvelope = 0, numUsed = 0, charge, start, broken;
+		double[] theoIntDistribution = new double[maxEnvelopeLength], observedIntDistribution = new double[maxEnvelopeLength];
+		long key;
 
-				for (int i = 0; i < envelope.size(); i++) // normalize
-					observedIntDistribution[i] /= temp;
+		for (int size = maxEnvelopeLength; size > 1; size--)
+		{
+			long[] group = candidates[size];
+			Arrays.sort(group, 0, numCandidate[size]);
 
-				if (chiSquareValue(observedIntDistribution, theoIntDistribution) < chiSquareCutoff[envelope.size() - 1]) // passed
-				{
-					validatedEnvelopes.add(envelope);
+			for (int i = 0; i < numCandidate[size]; i++)
+			{
+				key = group[i];
 
-					for (int i = 0; i < envelope.size(); i++) // update peak status as 'used'
-						assigned[envelope.get(i)] = true;
-				}
+				if (i > 0 && key == group[i - 1]) // same envelope
+					continue;
+
+				charge = precursorCharge - (int) (key >>> 32);
+				start = (int) key;
+				base = (charge - 1) * numPeak;
 
-				else // try either removing the first or last peaks
+				// check whether all peaks are available
+				broken = -1;
+				peak = start;
+
+				for (int j = 0; j < size; j++, peak = nextPeak[base + peak])
 				{
-					if (envelope.size() > 2)
+					if (used[peak])
 					{
-						candidateEnvelopes.add(new IsotopeEnvelopeStruct(envelope, 0, envelope.size() - 2)); // remove last peak
-						candidateEnvelopes.add(new IsotopeEnvelopeStruct(envelope, 1, envelope.size() - 1)); // remove first peak
+						broken = j;
+						break;
 					}
 				}
-			}
-			
-			envelope = candidateEnvelopes.pollFirst(); // retrieve next element
-		}
-
-		// add unused peaks as a zero-charge group
-		envelope = new IsotopeEnvelopeStruct(0);
 
-		for (int i = 0; i < spectrum.length; i++)
-		{
-			if (!assigned[i])
-				envelope.add(i);
-		}
+				if (broken >= 0) // add smaller envelopes before and after the used peak back in
+				{
+					if (broken > 1)
+						addCandidate(candidates, numCandidate, precursorCharge, charge, start, broken);
 
-		validatedEnvelopes.add(envelope);
+					if (size - broken - 1 > 1)
+						addCandidate(candidates, numCandidate, precursorCharge, charge, nextPeak[base + peak], size - broken - 1);
 
-		return validatedEnvelopes;
-	}
+					continue;
+				}
 
-	// compute chi-square score
-	public static double chiSquareValue(double[] real, double[] expect)
-	{
-		double sum = 0;
+				AveragineTable.getDistribution(mz[start] * charge - charge * MassInfo.proton, size, theoIntDistribution); // obtain averagine distribution
+				double temp = 0;
+				peak = start;
 
-		for (int i = 0; i < real.length; i++)
-			sum += Math.pow(real[i] - expect[i], 2) / expect[i];
+				for (int j = 0; j < size; j++, peak = nextPeak[base + peak]) // extract intensity
+				{
+					observedIntDistribution[j] = intensity[peak];
+					temp += observedIntDistribution[j];
+				}
 
-		return sum;
-	}
+				for (int j = 0; j < size; j++) // normalize
+					observedIntDistribution[j] /= temp;
 
-	// compute ideal envelope's intensity ratio based on averagine
-	public static double[] averagineIntensity(IsotopeEnvelopeStruct envelope, double[][] spectrum)
-	{
-		double mass = spectrum[envelope.get(0)][0] * envelope.chargeState - envelope.chargeState * MassInfo.proton;
-		double fold = mass / averagineWeight;
-		int[] newRatio = new int[5]; // rounded [C, H, N, O, S] ratio
+				if (chiSquareValue(observedIntDistribution, theoIntDistribution, size) < chiSquareCutoff[size - 1]) // passed
+				{
+					envelopeStart[numEnvelope] = start;
+					envelopeCharge[numEnvelope] = charge;
+					envelopeSize[numEnvelope++] = size;
+					peak = start;
 
-		for (int i = 0; i < 5; i++)
-			newRatio[i] = (int) Math.round(averagineRatio[i] * fold);
+					for (int j = 0; j < size; j++, peak = nextPeak[base + peak]) // update peak status as 'used'
+						used[peak] = true;
 
-		double[] distribution = new double[envelope.size()];
-		double sum = 0;
+					numUsed += size;
+				}
 
-		for (int i = 0; i < envelope.size(); i++)
-		{
-			distribution[i] = isotopeProb(newRatio, i);
-			sum += distribution[i];
+				else if (size > 2) // try either removing the first or last peaks
+				{
+					addCandidate(candidates, numCandidate, precursorCharge, charge, start, size - 1); // remove last peak
+					addCandidate(candidates, numCandidate, precursorCharge, charge, nextPeak[base + start], size - 1); // remove first peak
+				}
+			}
 		}
 
-		for (int i = 0; i < envelope.size(); i++)
-			distribution[i] /= sum;
+		// one peak per envelope, then unused peaks with no charge state
+		int numDeisotoped = numEnvelope + numPeak - numUsed, current = 0;
+		double[] newMZ = new double[numDeisotoped], newIntensity = new double[numDeisotoped];
+		byte[] newCharge = new byte[numDeisotoped];
 
-		return distribution; // sum to 1
-	}
+		for (int i = 0; i < numEnvelope; i++)
+		{
+			base = (envelopeCharge[i] - 1) * numPeak;
+			peak = envelopeStart[i];
+			double sum = 0;
 
-	// compute P(isotope = +n neutrons) given [C, H, N, O, S] composition
-	// consider only C13 (+1), N15 (+1), and O18 (+2)
-	public static double isotopeProb(int[] comp, int n)
-	{
-		// if we don't have enough atom to generate the isotope, return zero
-		if (comp[0] + comp[2] + 2*comp[3] < n)
-			return 0;
+			for (int j = 0; j < envelopeSize[i]; j++, peak = nextPeak[base + peak]) // sum intensity
+				sum += intensity[peak];
 
-		double[] isoProbs = {0.01109, 0.00366, 0.00201}; // C13, N15, and O18 existences in nature
-		double prob = 0, temp;
+			newMZ[current] = mz[envelopeStart[i]]; // monoisotopic mz
+			newIntensity[current] = sum;
+			newCharge[current++] = (byte) envelopeCharge[i];
+		}
 
-		// iterate over all possible n-object distribution using "star & bar" technique
-		for (int n1 = 1; n1 < n + 2; n1++)
-		for (int n2 = n1 + 1; n2 < n + 3; n2++)
+		for (int i = 0; i < numPeak; i++)
 		{
-			// there will be (n1 - 1) of C13, (n2 - n1 - 1) of N15, and (n + 3 - n2 - 1)/2 of O18 for a grand total of exactly n neutrons
-			// proceed only if we have an integer number of O18 and does not exceed any atomic composition
-			if ((n - n2) % 2 == 0 && n1 < comp[0] + 2 && n2 - n1 < comp[2] + 2 && (n - n2) / 2 < comp[3])
+			if (!used[i])
 			{
-				temp = logBinomial(comp[0], n1 - 1, isoProbs[0]) + logBinomial(comp[2], n2 - n1 - 1, isoProbs[1]) +
-					logBinomial(comp[3], (n - n2) / 2 + 1, isoProbs[2]);
-
-				prob += Math.exp(temp);
+				newMZ[current] = mz[i];
+				newIntensity[current++] = intensity[i];
 			}
 		}
 
-		return prob;
+		int[] order = HelperFunctions.getSortedIndex(newMZ, numDeisotoped); // stable, by m/z
+		double[] sortedMZ = new double[numDeisotoped], sortedIntensity = new double[numDeisotoped];
+		byte[] sortedCharge = new byte[numDeisotoped];
+
+		for (int i = 0; i < numDeisotoped; i++)
+		{
+			sortedMZ[i] = newMZ[order[i]];
+			sortedIntensity[i] = newIntensity[order[i]];
+			sortedCharge[i] = newCharge[order[i]];
+		}
+
+		spectrum.setSpectrum(sortedMZ, sortedIntensity, sortedCharge);
 	}
 
-	// compute log bionomial term (n choose k) (1 - a)^(n-k) a^k [x^k]
-	public static double logBinomial(int n, int k, double a)
+	// add candidate envelope to its size group
+	// packed key sorts higher charge state first, then lower starting peak
+	static void addCandidate(long[][] candidates, int[] numCandidate, int precursorCharge, int charge, int start, int size)
 	{
-		double result = 0;
+		if (numCandidate[size] == candidates[size].length)
+			candidates[size] = Arrays.copyOf(candidates[size], 2 * numCandidate[size]);
 
-		result += Math.log(1 - a) * (n - k) + Math.log(a) * k;
+		candidates[size][numCandidate[size]++] = ((long) (precursorCharge - charge) << 32) | start;
+	}
 
-		if (k == 0)
-			return result;
+	// compute chi-square score over the first 'length' entries
+	public static double chiSquareValue(double[] real, double[] expect, int length)
+	{
+		double sum = 0, difference;
 
-		for (int i = 1; i < k + 1; i++)
-			result += Math.log(n + 1 - i) - Math.log(i);
+		for (int i = 0; i < length; i++)
+		{
+			difference = real[i] - expect[i];
+			sum += difference * difference / expect[i];
+		}
 
-		return result;
+		return sum;
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,77 @@
+import java.util.ArrayList;
+
+// score a batch of neighbouring precursors, all from the same mzXML file, against their matched candidates
+// spectrum grabbing, centroiding, de-isotoping, candidate decoding and fragmentation all happen in the worker thread
+// precursors come in file order, so the thread's scan reader serves neighbours from its read-ahead buffer
+public class GrabAndMatchSpectrum implements Runnable
+{
+	DataGrabber grabber; // shared mzXML readers and candidate stores
+	ArrayList<PrecursorStruct> precursors;
+	ArrayList<ArrayList<ThreadPeptideStruct>> matches; // matched candidates of each precursor
+	String rawfileName;
+	ArrayList<ProteinStruct> proteins;
+	ParamStruct param;
+	FragmentLadderStruct ladder = new FragmentLadderStruct(); // theoretical ions of the current candidate, reused across the batch
+
+	public GrabAndMatchSpectrum(DataGrabber grabber, ArrayList<PrecursorStruct> precursors, ArrayList<ArrayList<ThreadPeptideStruct>> matches, String rawfileName, ArrayList<ProteinStruct> proteins, ParamStruct param)
+	{
+		this.grabber = grabber;
+		this.precursors = precursors;
+		this.matches = matches;
+		this.rawfileName = rawfileName;
+		this.proteins = proteins;
+		this.param = param;
+	}
+
+	public void run()
+	{
+		int threadID = Integer.valueOf(Thread.currentThread().getName().split("-")[1]);
+
+		for (int i = 0; i < precursors.size(); i++)
+			match(precursors.get(i), i + 1 < precursors.size() ? precursors.get(i + 1) : null, matches.get(i), grabber.scanReaders[threadID], grabber.centroiders[threadID], grabber.scoringContexts[threadID]);
+	}
+
+	// score one precursor, 'nextPrecursor' is the next one in the batch
+	void match(PrecursorStruct precursor, PrecursorStruct nextPrecursor, ArrayList<ThreadPeptideStruct> matches, MzXMLScanReader scanReader, PeakCentroider centroider, ScoringContextStruct context)
+	{
+		try
+		{
+			SpectrumStruct currentSpectrum = grabber.grabSpectrum(grabber.mzXMLReaders[precursor.rawFileID], scanReader, centroider, precursor, nextPrecursor, rawfileName, param);
+
+			if (currentSpectrum == null) // already reported by 'grabSpectrum()'
+				return;
+
+			if (currentSpectrum.length() == 0) // nothing to score
+				return;
+
+			if (param.performDeisotope && param.isHighResFragmentTolerance) // de-isotope spectrum, once per precursor
+				Deisotoper_ChiSquare.deisotope(currentSpectrum, param);
+
+			ThreadPeptideStruct temppeptide;
+			PeptideStruct currentPeptide;
+			CrosslinkStruct currentCrosslink;
+
+			for (int i = 0; i < matches.size(); i++) // for each matched peptide
+			{
+				temppeptide = matches.get(i);
+
+				if (temppeptide.isCrosslink) // crosslink
+				{
+					currentCrosslink = grabber.grabCrosslink(grabber.crosslinkFiles[temppeptide.threadID], temppeptide.peptideID, proteins, param);
+					FragmentGenerator.fragmentManual(currentCrosslink, param, ladder);
+					new SpectrumMatcher(ladder, currentSpectrum, currentCrosslink, context, param).run(); // score in this thread
+				}
+
+				else // linear
+				{
+					currentPeptide = grabber.grabPeptide(grabber.peptideFiles[temppeptide.threadID], temppeptide.peptideID, proteins, param);
+					FragmentGenerator.fragmentManual(currentPeptide, ladder);
+					new SpectrumMatcher(ladder, currentSpectrum, currentPeptide, context, param).run(); // score in this thread
+				}
+			}
+		}
+
+		catch (Exception e)
+		{ HelperFunctions.debug("GrabAndMatchSpectrum", HelperFunctions.getStackTrace(e)); }
+	}
+}
@@ -86,11 +86,11 @@ public final class HelperFunctions
 	{ return target - ref; }
 
 	// get possible charge state range for a fragmented ion
-	public static int[] getChargeRange(FragmentIonStruct ion, int precursorChargeState)
+	public static int[] getChargeRange(byte type, int ionID, int precursorChargeState)
 	{
 		int[] range = new int[2];
 		
-		if (ion.ionType == 'p') // precursor
+		if (FragmentLadderStruct.isPrecursor(type)) // precursor
 		{
 			range[0] = precursorChargeState;
 			range[1] = precursorChargeState;
@@ -98,7 +98,7 @@ public final class HelperFunctions
 			return range;
 		}
 
-		if (ion.isCrosslink) // crosslinked ion
+		if (FragmentLadderStruct.isCrosslink(type)) // crosslinked ion
 		{
 			range[0] = 2;
 			range[1] = precursorChargeState;
@@ -109,44 +109,47 @@ public final class HelperFunctions
 			range[0] = 1;
 			range[1] = precursorChargeState - 1;
 
-			if (ion.ionID < 6)
+			if (ionID < 6)
 				range[1] = 1;
-			if (ion.ionID > 12)
+			if (ionID > 12)
 				range[0] = 2;
 		}
 
 		return range;
 	}
 
-	// get mass array out of ArrayList<ChargedPeakStruct>at specified charge state
-	// take reference to output variable
-	public static void getMassArray(ArrayList<ChargedPeakStruct> sortedInput, int chargeState, ArrayList<Integer[]> outputID, ArrayList<Double[]> output)
+	// stable sort of the first 'length' keys, return positions in ascending key order
+	// ties keep their original order, bottom-up merge sort on primitive positions
+	public static int[] getSortedIndex(double[] keys, int length)
 	{
-		ArrayList<Integer> tempID = new ArrayList<Integer>();
-		ArrayList<Double> temp = new ArrayList<Double>();
+		int[] index = new int[length], temp = new int[length], swap;
+		int middle, right, i, j, k;
 
-		for (int i = 0; i < sortedInput.size(); i++)
+		for (i = 0; i < length; i++)
+			index[i] = i;
+
+		for (int width = 1; width < length; width *= 2)
 		{
-			if (sortedInput.get(i).chargeState == chargeState)
+			for (int left = 0; left < length; left += 2 * width)
 			{
-				tempID.add(new Integer(i));
-				temp.add(new Double(sortedInput.get(i).massWithOneCharge));
+				middle = Math.min(left + width, length);
+				right = Math.min(left + 2 * width, length);
+
+				for (i = left, j = middle, k = left; k < right; k++)
+				{
+					if (j < right && (i == middle || keys[index[j]] < keys[index[i]]))
+						temp[k] = index[j++];
+					else
+						temp[k] = index[i++];
+				}
 			}
-		}
-
-		outputID.add(tempID.toArray(new Integer[0]));
-		output.add(temp.toArray(new Double[0]));
-	}
 
-	// get mass array out of ArrayList<ChargedPeakStruct>
-	public static Double[] getMassArray(ArrayList<ChargedPeakStruct> sortedInput)
-	{
-		Double[] sortedOutput = new Double[sortedInput.size()];
-
-		for (int i = 0; i < sortedInput.size(); i++)
-			sortedOutput[i] = sortedInput.get(i).massWithOneCharge;
+			swap = index;
+			index = temp;
+			temp = swap;
+		}
 
-		return sortedOutput;
+		return index;
 	}
 
 	// sort and return indexed array
@@ -1,76 +1,337 @@
-import java.util.TreeMap;
-import java.util.concurrent.*;
+import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
 
 // multi-threading for extracting indices from mzXML file
-public class IndexGrabberThread implements Callable<TreeMap<Integer, Long>>
+// use cached '<file>.zxidx' if it matches the mzXML file, otherwise read the embedded index
+// scan the whole file if the embedded index is missing or broken, and cache the result
+public class IndexGrabberThread implements Callable<ScanIndexStruct>
 {
+	static final int chunkSize = 1 << 20; // read 1 MB at a time when scanning the whole file
+	static final int maxTagLength = 1 << 12; // a '<scan' start tag is expected to fit in 4 KB
+	static final int tailLength = 1 << 12; // '<indexOffset>' is expected in the last 4 KB
+
+	static final byte[] scanTag = bytes("<scan"), numAttr = bytes("num"), indexTag = bytes("<index"), indexEndTag = bytes("</index>");
+	static final byte[] offsetTag = bytes("<offset"), idAttr = bytes("id"), indexOffsetTag = bytes("<indexOffset>");
+
 	int mzXMLFileID;
 	String mzXMLPath;
-	Pattern indexPattern;
 
-	public IndexGrabberThread(int mzXMLFileID, String mzXMLPath, Pattern indexPattern)
+	// growing list of index entries
+	int numScan;
+	int[] scanNumbers = new int[1024];
+	long[] offsets = new long[1024];
+
+	public IndexGrabberThread(int mzXMLFileID, String mzXMLPath)
 	{
 		this.mzXMLFileID = mzXMLFileID;
 		this.mzXMLPath = mzXMLPath;
-		this.indexPattern = indexPattern;
 	}
 
-	public TreeMap<Integer, Long> call()
+	static byte[] bytes(String st)
+	{ return st.getBytes(StandardCharsets.ISO_8859_1); }
+
+	public ScanIndexStruct call()
 	{
 		try
 		{
-			TreeMap<Integer, Long> tempmap = new TreeMap<Integer, Long>();
-			String st;
-			Matcher match;
+			File mzXMLFile = new File(mzXMLPath + ".mzXML");
+			String indexPath = mzXMLPath + ".mzXML.zxidx";
+			long fileSize = mzXMLFile.length(), lastModified = mzXMLFile.lastModified();
 
-			RandomAccessFile reader = new RandomAccessFile(mzXMLPath + ".mzXML", "r");
-			reader.seek((long) (reader.length() * 0.999)); // heuristic seek
+			ScanIndexStruct index = ScanIndexStruct.load(indexPath, fileSize, lastModified);
 
-			st = reader.readLine().trim();
+			if (index != null) // cached
+				return index;
 
-			while (!st.equals("<index name=\"scan\">")) // seek for index info
-			{
-				// System.out.println(st);
-				st = reader.readLine().trim();
+			RandomAccessFile reader = new RandomAccessFile(mzXMLFile, "r");
 
-				if (st.startsWith("<indexOffset>")) // heuristic seek is too deep
+			try
+			{
+				if (!readIndex(reader))
 				{
-					long offset = Long.valueOf(st.split(">")[1].split("<")[0]);
-					reader.seek(offset);
-					st = reader.readLine().trim(); // this should be '<index name="scan">'
-					break;
+					HelperFunctions.debug("Missing or broken index in " + mzXMLPath + ".mzXML, scanning the whole file");
+					numScan = 0;
+					scanFile(reader);
 				}
 			}
 
-			st = reader.readLine().trim();
+			finally
+			{ reader.close(); }
 
-			while (!st.equals("</index>"))
+			index = getIndex();
+
+			try
 			{
-				// System.out.println(st);
-				match = indexPattern.matcher(st);
-				st = reader.readLine().trim();
+				index.save(indexPath, fileSize, lastModified);
+			}
+
+			catch (IOException e) // not fatal, index is rebuilt next time
+			{ HelperFunctions.debug("IndexGrabberThread", "Cannot write index cache " + indexPath); }
+
+			return index;
+		}
+
+		catch (Exception e)
+		{ HelperFunctions.debug("IndexGrabberThread", HelperFunctions.getStackTrace(e)); }
+
+		return null; // fails
+	}
+
+	// read the embedded index pointed by '<indexOffset>', return false if it is missing or broken
+	boolean readIndex(RandomAccessFile reader) throws IOException
+	{
+		long fileSize = reader.length();
+		int length = (int) Math.min(fileSize, tailLength);
+		byte[] tail = new byte[length];
+
+		reader.seek(fileSize - length);
+		reader.readFully(tail);
+
+		int position = lastIndexOf(tail, length, indexOffsetTag);
+
+		if (position < 0)
+			return false;
+
+		long indexOffset = parseLong(tail, position + indexOffsetTag.length, length);
+
+		if (indexOffset < 0 || indexOffset >= fileSize || fileSize - indexOffset > Integer.MAX_VALUE)
+			return false;
+
+		byte[] index = new byte[(int) (fileSize - indexOffset)];
+		reader.seek(indexOffset);
+		reader.readFully(index);
+
+		for (position = 0; position < index.length && isSpace(index[position]); position++) {} // tolerate whitespace before '<index'
+
+		if (!startsWith(index, position, index.length, indexTag))
+			return false;
+
+		int end = indexOf(index, 0, index.length, indexEndTag);
+
+		if (end < 0)
+			return false;
+
+		int scanNumber, tagEnd;
+		long offset;
 
-				if (match.find())
+		for (position = indexOf(index, 0, end, offsetTag); position >= 0; position = indexOf(index, tagEnd, end, offsetTag))
+		{
+			tagEnd = indexOf(index, position, end, '>');
+
+			if (tagEnd < 0)
+				return false;
+
+			scanNumber = (int) parseAttribute(index, position + offsetTag.length, tagEnd, idAttr);
+			offset = parseLong(index, tagEnd + 1, end);
+
+			if (scanNumber < 0 || offset < 0 || offset >= fileSize)
+				return false;
+
+			add(scanNumber, offset);
+		}
+
+		if (numScan == 0)
+			return false;
+
+		return isScanStart(reader, offsets[0]) && isScanStart(reader, offsets[numScan - 1]); // spot check
+	}
+
+	// scan the whole file for '<scan' tags
+	void scanFile(RandomAccessFile reader) throws IOException
+	{
+		byte[] buffer = new byte[chunkSize];
+		int length = 0, position = 0, end, numRead, scanNumber;
+		long base = 0; // file offset of 'buffer[0]'
+		boolean endOfFile = false;
+
+		reader.seek(0);
+
+		while (!endOfFile)
+		{
+			// keep unprocessed bytes, a tag may cross the chunk boundary
+			System.arraycopy(buffer, position, buffer, 0, length - position);
+			base += position;
+			length -= position;
+			position = 0;
+
+			numRead = reader.read(buffer, length, buffer.length - length);
+
+			if (numRead > 0)
+				length += numRead;
+			else
+				endOfFile = true;
+
+			end = endOfFile ? length : length - maxTagLength;
+
+			for (; position < end; position++)
+			{
+				if (buffer[position] == '<' && startsWith(buffer, position, length, scanTag) && position + scanTag.length < length && isSpace(buffer[position + scanTag.length]))
 				{
-					tempmap.put(new Integer(match.group(1)), new Long(match.group(2)));
-					// System.out.println(match.group(1));
-					// System.out.println(match.group(2));
+					scanNumber = (int) parseAttribute(buffer, position + scanTag.length, length, numAttr);
+
+					if (scanNumber >= 0)
+						add(scanNumber, base + position);
 				}
+			}
+		}
+	}
+
+	// check that a scan starts at an offset
+	boolean isScanStart(RandomAccessFile reader, long offset) throws IOException
+	{
+		byte[] start = new byte[scanTag.length];
+
+		reader.seek(offset);
+
+		if (reader.read(start) < start.length)
+			return false;
+
+		return Arrays.equals(start, scanTag);
+	}
+
+	void add(int scanNumber, long offset)
+	{
+		if (numScan == scanNumbers.length)
+		{
+			scanNumbers = Arrays.copyOf(scanNumbers, 2 * numScan);
+			offsets = Arrays.copyOf(offsets, 2 * numScan);
+		}
+
+		scanNumbers[numScan] = scanNumber;
+		offsets[numScan] = offset;
+		numScan++;
+	}
+
+	// return index sorted by scan number
+	ScanIndexStruct getIndex()
+	{
+		int[] sortedScanNumbers = Arrays.copyOf(scanNumbers, numScan);
+		long[] sortedOffsets = Arrays.copyOf(offsets, numScan);
+		boolean sorted = true;
+
+		for (int i = 1; i < numScan && sorted; i++)
+			sorted = scanNumbers[i - 1] < scanNumbers[i];
 
-				else
-					HelperFunctions.debug("Unexpected pattern in mzXML index!");
+		if (!sorted) // rare, scans are normally stored in order
+		{
+			Integer[] order = new Integer[numScan];
+
+			for (int i = 0; i < numScan; i++)
+				order[i] = i;
+
+			Arrays.sort(order, new Comparator<Integer>()
+			{
+				public int compare(Integer entry1, Integer entry2)
+				{ return Integer.compare(scanNumbers[entry1], scanNumbers[entry2]); }
+			});
+
+			for (int i = 0; i < numScan; i++)
+			{
+				sortedScanNumbers[i] = scanNumbers[order[i]];
+				sortedOffsets[i] = offsets[order[i]];
 			}
+		}
 
-			reader.close();
-			return tempmap;
+		return new ScanIndexStruct(sortedScanNumbers, sortedOffsets);
+	}
+
+	static boolean isSpace(byte c)
+	{ return c == ' ' || c == '\n' || c == '\r' || c == '\t'; }
+
+	static boolean startsWith(byte[] buffer, int position, int end, byte[] pattern)
+	{
+		if (end - position < pattern.length)
+			return false;
+
+		for (int i = 0; i < pattern.length; i++)
+		{
+			if (buffer[position + i] != pattern[i])
+				return false;
 		}
 
-		catch (Exception e)
-		{ HelperFunctions.debug("IndexGrabberThread", HelperFunctions.getStackTrace(e)); }
+		return true;
+	}
 
-		return null; // fails
+	static int indexOf(byte[] buffer, int from, int end, byte[] pattern)
+	{
+		for (int i = from; i <= end - pattern.length; i++)
+		{
+			if (startsWith(buffer, i, end, pattern))
+				return i;
+		}
+
+		return -1;
+	}
+
+	static int indexOf(byte[] buffer, int from, int end, char c)
+	{
+		for (int i = from; i < end; i++)
+		{
+			if (buffer[i] == c)
+				return i;
+		}
+
+		return -1;
+	}
+
+	static int lastIndexOf(byte[] buffer, int end, byte[] pattern)
+	{
+		for (int i = end - pattern.length; i >= 0; i--)
+		{
+			if (startsWith(buffer, i, end, pattern))
+				return i;
+		}
+
+		return -1;
+	}
+
+	// parse digits, leading whitespace allowed, return -1 if there is none
+	static long parseLong(byte[] buffer, int position, int end)
+	{
+		while (position < end && isSpace(buffer[position]))
+			position++;
+
+		if (position == end || buffer[position] < '0' || buffer[position] > '9')
+			return -1;
+
+		long value = 0;
+
+		for (; position < end && buffer[position] >= '0' && buffer[position] <= '9'; position++)
+			value = 10 * value + (buffer[position] - '0');
+
+		return value;
+	}
+
+	// parse numeric attribute inside a start tag, return -1 if there is none
+	static long parseAttribute(byte[] buffer, int position, int end, byte[] name)
+	{
+		for (; position < end && buffer[position] != '>'; position++)
+		{
+			if (!isSpace(buffer[position]) || !startsWith(buffer, position + 1, end, name))
+				continue;
+
+			int i = position + 1 + name.length;
+
+			while (i < end && isSpace(buffer[i]))
+				i++;
+
+			if (i == end || buffer[i] != '=')
+				continue;
+
+			i++;
+
+			while (i < end && isSpace(buffer[i]))
+				i++;
+
+			if (i < end && (buffer[i] == '"' || buffer[i] == '\''))
+				return parseLong(buffer, i + 1, end);
+		}
+
+		return -1;
 	}
-}
\ No newline at end of file
+}
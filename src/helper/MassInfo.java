@@ -53,6 +53,10 @@ public class MassInfo
 		put(new Character(']'), new Double(0));
 	}};
 
+	// amino acid mass table indexed by residue character, include fixed modifications
+	// built from 'aminoacidMasses' whenever the modifications change
+	static double[] residueMasses = buildResidueMasses();
+
 	// amino acid modifications
 	static TreeMap<Character, ModificationStruct> fixedModifications = new TreeMap<Character, ModificationStruct>(); // at most one modification
 	static TreeMap<Character, ArrayList<ModificationStruct>> varModifications = new TreeMap<Character, ArrayList<ModificationStruct>>();
@@ -73,6 +77,17 @@ public class MassInfo
 			return null;
 	}
 
+	// build residue mass table from 'aminoacidMasses'
+	static double[] buildResidueMasses()
+	{
+		double[] table = new double[128];
+
+		for (Character residue : aminoacidMasses.keySet())
+			table[residue.charValue()] = aminoacidMasses.get(residue).doubleValue();
+
+		return table;
+	}
+
 	// return mass of target molecule
 	public static double getMass(String molecule, boolean isAminoAcid)
 	{
@@ -81,7 +96,7 @@ public class MassInfo
 		if (isAminoAcid) // determine which mass table to use
 		{
 			for (int i = 0; i < molecule.length(); i++)
-				mass += aminoacidMasses.get(new Character(molecule.charAt(i))).doubleValue();
+				mass += residueMasses[molecule.charAt(i)];
 
 			mass += water;
 		}
@@ -97,7 +112,7 @@ public class MassInfo
 	
 	// return pure residue mass
 	public static double getResidueMass(char residue)
-	{ return aminoacidMasses.get(new Character(residue)).doubleValue(); }
+	{ return residueMasses[residue]; }
 	
 	// return residue + modification mass
 	public static double getResidueMass(PeptideStruct peptide, int position)
@@ -109,7 +124,17 @@ public class MassInfo
 		if (peptide == null) // trick for loop crosslink
 			return 0;
 		else
-			return getMass(peptide.getSequence(true), true) + peptide.getModDeltaMass();
+			return peptide.parent.sumResidueMass(peptide.startPos, peptide.endPos) + water + peptide.getModDeltaMass(); // no sequence string
+	}
+
+	// return mass of peptide for precursor matching, O(#mods) from prefix sums
+	// can be a few ulps off 'getMass()', far below any ppm tolerance, do not use for scoring
+	public static double getPrecursorMass(PeptideStruct peptide)
+	{
+		if (peptide == null) // trick for loop crosslink
+			return 0;
+		else
+			return peptide.parent.getResidueMass(peptide.startPos, peptide.endPos) + water + peptide.getModDeltaMass();
 	}
 
 	// return mass of peptide
@@ -119,7 +144,14 @@ public class MassInfo
 		if (peptide == null) // trick for loop crosslink
 			return 0;
 		else
-			return getMass(peptide.getSequence(startPos, endPos, includeTerminal), true) + peptide.getModDeltaMass(startPos, endPos, includeTerminal);
+		{
+			int offset = peptide.startPos;
+
+			if (!includeTerminal && peptide.getFirstResidue() == '[') // N-terminal symbol shift index by 1
+				offset++;
+
+			return peptide.parent.sumResidueMass(offset + startPos, offset + endPos) + water + peptide.getModDeltaMass(startPos, endPos, includeTerminal);
+		}
 	}
 
 	// return mass of crosslink
@@ -237,6 +269,8 @@ public class MassInfo
 				addModificationEntry(param.crosslinker.siteA.charAt(i) + ",Dead-end," + (param.crosslinker.deltaMass + hydrogen), true);
 		}
 
+		residueMasses = buildResidueMasses(); // fixed modifications changed the table
+
 		// HelperFunctions.debug("amino acid mass table", MassInfo.aminoacidMasses);
 		// HelperFunctions.debug("all modifications", MassInfo.modifications);
 	}
@@ -273,5 +307,7 @@ public class MassInfo
 			put(new Character('['), new Double(0));
 			put(new Character(']'), new Double(0));
 		}};
+
+		residueMasses = buildResidueMasses();
 	}
 }
\ No newline at end of file
@@ -7,6 +7,72 @@ public final class MassMatcher
 	private MassMatcher()
 	{}
 
+	// allocation-free version for primitive array
+	// write matched index range [range[0], range[1]) to 'range' and return number of matches
+	public static int match(double[] sorted, double target, double ppm, int[] range)
+	{ return match(sorted, 0, sorted.length, target, ppm, range); }
+
+	// only consider sorted[begin], ..., sorted[end - 1]
+	public static int match(double[] sorted, int begin, int end, double target, double ppm, int[] range)
+	{
+		range[0] = lowerBound(sorted, begin, end, target, ppm);
+		range[1] = upperBound(sorted, range[0], end, target, ppm);
+
+		return range[1] - range[0];
+	}
+
+	// return first index that is not too low, i.e. ppm error > -ppm
+	// iterative binary search on mass, no division inside the loop
+	public static int lowerBound(double[] sorted, int begin, int end, double target, double ppm)
+	{
+		double bound = target - ppm * target / 1000000; // approximate boundary
+		int low = begin, high = end, mid;
+
+		while (low < high)
+		{
+			mid = (low + high) >>> 1;
+
+			if (sorted[mid] <= bound) // too low, look at the top half
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		// correct rounding error at the boundary with the exact criterion
+		while (low > begin && HelperFunctions.getppmError(target, sorted[low - 1]) > -ppm)
+			low--;
+		while (low < end && HelperFunctions.getppmError(target, sorted[low]) <= -ppm)
+			low++;
+
+		return low;
+	}
+
+	// return first index that is too high, i.e. ppm error >= ppm
+	// iterative binary search on mass, no division inside the loop
+	public static int upperBound(double[] sorted, int begin, int end, double target, double ppm)
+	{
+		double bound = target + ppm * target / 1000000; // approximate boundary
+		int low = begin, high = end, mid;
+
+		while (low < high)
+		{
+			mid = (low + high) >>> 1;
+
+			if (sorted[mid] < bound) // not too high, look at the top half
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		// correct rounding error at the boundary with the exact criterion
+		while (low > begin && HelperFunctions.getppmError(target, sorted[low - 1]) >= ppm)
+			low--;
+		while (low < end && HelperFunctions.getppmError(target, sorted[low]) < ppm)
+			low++;
+
+		return low;
+	}
+
 	public static ArrayList<Integer> match(Double[] sorted, double target, double ppm)
 	{
 		ArrayList<Integer> result = new ArrayList<Integer>();
@@ -0,0 +1,554 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// streaming byte-level reader of one mzXML '<scan>' element, starting from its index offset
+// a small state machine walks tags and attributes, so attribute order and line breaks do not matter
+// only attributes of 'scan', the first 'precursorMz' and 'peaks' are kept, peaks payload stays in the byte buffer
+// one reader per thread, buffers and inflater are reused between scans
+// reads extend up to the start of the next requested scan, so a following scan of the same file that is already buffered costs no I/O
+public class MzXMLScanReader
+{
+	static final int readAheadSize = 1 << 18; // initial buffer size, longest read-ahead
+	static final int chunkSize = 1 << 16; // read at least 64 KB at a time, initial size of peak buffers
+
+	// parser states
+	static final int TEXT = 0, TAG_NAME = 1, IN_TAG = 2, ATTR_NAME = 3, BEFORE_EQUAL = 4, BEFORE_VALUE = 5, ATTR_VALUE = 6, PEAKS = 7, DONE = 8;
+
+	// elements of interest
+	static final int OTHER = 0, SCAN = 1, PRECURSOR = 2, PEAKS_ELEMENT = 3;
+
+	static final byte[] scanTag = bytes("scan"), scanEndTag = bytes("/scan"), precursorTag = bytes("precursorMz"), peaksTag = bytes("peaks");
+	static final byte[] numAttr = bytes("num"), peaksCountAttr = bytes("peaksCount"), centroidedAttr = bytes("centroided"), retentionTimeAttr = bytes("retentionTime"), basePeakIntensityAttr = bytes("basePeakIntensity");
+	static final byte[] precursorScanNumAttr = bytes("precursorScanNum"), precursorIntensityAttr = bytes("precursorIntensity");
+	static final byte[] precisionAttr = bytes("precision"), byteOrderAttr = bytes("byteOrder"), littleValue = bytes("little");
+	static final byte[] compressionTypeAttr = bytes("compressionType"), zlibValue = bytes("zlib");
+
+	static final double[] powersOfTen = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22}; // exact doubles
+	static final long maxExactMantissa = 1L << 53;
+
+	byte[] buffer = new byte[readAheadSize];
+	ByteBuffer bufferView = ByteBuffer.wrap(buffer); // for channel reads
+	int length; // valid bytes in buffer
+	FileChannel bufferedFile; // file and file offset of 'buffer[0]'
+	long bufferOffset;
+	byte[] peakBytes = new byte[chunkSize]; // decoded payload
+	byte[] inflatedBytes = new byte[chunkSize]; // decoded and inflated payload, zlib only
+	final Inflater inflater = new Inflater();
+	public double[] mz = new double[0], intensity = new double[0]; // decoded peaks, only the first 'decodePeaks()' entries are valid
+
+	// scan information, valid after 'read()'
+	public int scanNumber, peaksCount, parentScanNumber, precision;
+	public double retentionTime, basePeakIntensity, precursorIntensity; // retention time in minutes
+	public boolean centroided, littleEndian, zlibCompressed;
+	public int peaksStart, peaksEnd; // base64 payload, positions in buffer
+
+	// parser variables
+	int state, element, nameStart, attrNameStart, attrNameEnd, valueStart;
+	byte quote;
+	boolean seenScan, seenPrecursor, selfClosing;
+
+	public MzXMLScanReader()
+	{}
+
+	static byte[] bytes(String st)
+	{ return st.getBytes(StandardCharsets.ISO_8859_1); }
+
+	// parse scan starting at 'offset', i.e. at its '<scan' tag
+	// 'nextOffset' is the scan that will be read next from the same file, -1 if none, reads go just past its start
+	// positional reads only, file can be shared by any number of threads without locking
+	public void read(FileChannel file, long offset, long nextOffset) throws IOException
+	{
+		scanNumber = -1;
+		peaksCount = -1;
+		parentScanNumber = -1;
+		precision = 32;
+		retentionTime = -1;
+		basePeakIntensity = -1;
+		precursorIntensity = -1;
+		centroided = true;
+		littleEndian = false; // 'network' byte order
+		zlibCompressed = false;
+		peaksStart = 0;
+		peaksEnd = 0;
+
+		state = TEXT;
+		seenScan = false;
+		seenPrecursor = false;
+		int position = 0, numRead, readLength;
+
+		if (file == bufferedFile && offset >= bufferOffset && offset < bufferOffset + length) // already read ahead
+		{
+			int shift = (int) (offset - bufferOffset);
+			System.arraycopy(buffer, shift, buffer, 0, length - shift);
+			length -= shift;
+		}
+
+		else
+			length = 0;
+
+		bufferedFile = file;
+		bufferOffset = offset;
+
+		while (state != DONE)
+		{
+			if (position == length) // need more data
+			{
+				if (length == buffer.length) // keep the whole scan in buffer, payload has to be contiguous
+				{
+					byte[] newBuffer = new byte[2 * buffer.length];
+					System.arraycopy(buffer, 0, newBuffer, 0, length);
+					buffer = newBuffer;
+					bufferView = ByteBuffer.wrap(buffer);
+				}
+
+				readLength = chunkSize;
+
+				if (nextOffset > offset) // read ahead to the start of the next scan
+					readLength = (int) Math.max(readLength, Math.min(nextOffset + chunkSize - offset - length, buffer.length));
+
+				readLength = Math.min(readLength, buffer.length - length);
+				bufferView.limit(length + readLength).position(length);
+				numRead = file.read(bufferView, offset + length);
+
+				if (numRead <= 0)
+					throw new IOException("Unexpected end of file in scan at offset " + offset);
+
+				length += numRead;
+			}
+
+			for (; position < length && state != DONE; position++)
+				parse(position);
+		}
+	}
+
+	// advance the state machine by one byte
+	void parse(int position)
+	{
+		byte c = buffer[position];
+
+		switch (state)
+		{
+			case TEXT:
+				if (c == '<')
+				{
+					nameStart = position + 1;
+					selfClosing = false;
+					state = TAG_NAME;
+				}
+
+				break;
+
+			case TAG_NAME:
+				if (isSpace(c) || c == '>' || (c == '/' && position > nameStart))
+				{
+					startElement(nameStart, position);
+
+					if (state == DONE)
+						break;
+
+					if (c == '>')
+						endStartTag(position);
+
+					else
+					{
+						selfClosing = (c == '/');
+						state = IN_TAG;
+					}
+				}
+
+				break;
+
+			case IN_TAG:
+				if (c == '>')
+					endStartTag(position);
+
+				else if (c == '/')
+					selfClosing = true;
+
+				else if (!isSpace(c))
+				{
+					attrNameStart = position;
+					state = ATTR_NAME;
+				}
+
+				break;
+
+			case ATTR_NAME:
+				if (c == '=')
+				{
+					attrNameEnd = position;
+					state = BEFORE_VALUE;
+				}
+
+				else if (isSpace(c))
+				{
+					attrNameEnd = position;
+					state = BEFORE_EQUAL;
+				}
+
+				else if (c == '>') // attribute without value
+					endStartTag(position);
+
+				break;
+
+			case BEFORE_EQUAL:
+				if (c == '=')
+					state = BEFORE_VALUE;
+
+				else if (c == '>')
+					endStartTag(position);
+
+				else if (!isSpace(c)) // attribute without value, next one starts
+				{
+					attrNameStart = position;
+					state = ATTR_NAME;
+				}
+
+				break;
+
+			case BEFORE_VALUE:
+				if (c == '"' || c == '\'')
+				{
+					quote = c;
+					valueStart = position + 1;
+					state = ATTR_VALUE;
+				}
+
+				break;
+
+			case ATTR_VALUE:
+				if (c == quote)
+				{
+					setAttribute(valueStart, position);
+					state = IN_TAG;
+				}
+
+				break;
+
+			case PEAKS:
+				if (c == '<') // end of payload
+				{
+					peaksEnd = position;
+					state = DONE;
+				}
+
+				break;
+		}
+	}
+
+	// identify element from its tag name
+	void startElement(int start, int end)
+	{
+		element = OTHER;
+
+		if (equals(start, end, scanTag))
+		{
+			if (seenScan) // nested scan before any peaks
+				state = DONE;
+
+			else
+			{
+				seenScan = true;
+				element = SCAN;
+			}
+		}
+
+		else if (equals(start, end, precursorTag) && !seenPrecursor) // only the first precursor
+		{
+			seenPrecursor = true;
+			element = PRECURSOR;
+		}
+
+		else if (equals(start, end, peaksTag))
+			element = PEAKS_ELEMENT;
+
+		else if (equals(start, end, scanEndTag)) // scan without peaks
+			state = DONE;
+	}
+
+	// reached '>' of a start tag
+	void endStartTag(int position)
+	{
+		if (element == PEAKS_ELEMENT)
+		{
+			peaksStart = position + 1;
+			peaksEnd = peaksStart;
+			state = selfClosing ? DONE : PEAKS;
+		}
+
+		else
+			state = TEXT;
+	}
+
+	// store attribute of interest
+	void setAttribute(int start, int end)
+	{
+		switch (element)
+		{
+			case SCAN:
+				if (equals(attrNameStart, attrNameEnd, numAttr))
+					scanNumber = parseInt(start, end);
+
+				else if (equals(attrNameStart, attrNameEnd, peaksCountAttr))
+					peaksCount = parseInt(start, end);
+
+				else if (equals(attrNameStart, attrNameEnd, centroidedAttr))
+					centroided = (end - start == 1 && buffer[start] == '1') || (end - start == 4 && buffer[start] == 't'); // "1" or "true"
+
+				else if (equals(attrNameStart, attrNameEnd, retentionTimeAttr))
+					retentionTime = parseDuration(start, end) / 60.0; // convert to minutes
+
+				else if (equals(attrNameStart, attrNameEnd, basePeakIntensityAttr))
+					basePeakIntensity = parseDouble(start, end);
+
+				break;
+
+			case PRECURSOR:
+				if (equals(attrNameStart, attrNameEnd, precursorScanNumAttr))
+					parentScanNumber = parseInt(start, end);
+
+				else if (equals(attrNameStart, attrNameEnd, precursorIntensityAttr))
+					precursorIntensity = parseDouble(start, end);
+
+				break;
+
+			case PEAKS_ELEMENT:
+				if (equals(attrNameStart, attrNameEnd, precisionAttr))
+					precision = parseInt(start, end);
+
+				else if (equals(attrNameStart, attrNameEnd, byteOrderAttr))
+					littleEndian = equals(start, end, littleValue);
+
+				else if (equals(attrNameStart, attrNameEnd, compressionTypeAttr))
+					zlibCompressed = equals(start, end, zlibValue);
+
+				break;
+		}
+	}
+
+	// decode base64 payload into 'mz' and 'intensity', return number of peaks
+	// zlib payload is inflated after base64 decoding
+	// all buffers are reused, they only grow
+	public int decodePeaks() throws DataFormatException
+	{
+		int maxByte = (peaksEnd - peaksStart) / 4 * 3 + 3;
+
+		if (peakBytes.length < maxByte)
+			peakBytes = new byte[maxByte];
+
+		byte[] data = peakBytes;
+		int numByte = Base64Parser.decodeBase64(buffer, peaksStart, peaksEnd, peakBytes);
+
+		if (zlibCompressed)
+		{
+			numByte = inflate(numByte);
+			data = inflatedBytes;
+		}
+
+		int numPeak = Base64Parser.getNumPeak(numByte, precision);
+
+		if (mz.length < numPeak)
+		{
+			mz = new double[numPeak];
+			intensity = new double[numPeak];
+		}
+
+		ByteBuffer bytes = ByteBuffer.wrap(data, 0, numByte).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		return Base64Parser.decodePeaks(bytes, precision, mz, intensity);
+	}
+
+	// inflate decoded payload into 'inflatedBytes', return number of inflated bytes
+	int inflate(int numByte) throws DataFormatException
+	{
+		int expected = (peaksCount >= 0) ? peaksCount * (precision / 4) : 4 * numByte; // exact size when peaksCount is given
+		int numInflated = 0, numOut;
+
+		if (inflatedBytes.length < expected)
+			inflatedBytes = new byte[expected];
+
+		inflater.reset();
+		inflater.setInput(peakBytes, 0, numByte);
+
+		while (!inflater.finished())
+		{
+			if (numInflated == inflatedBytes.length) // peaksCount was wrong, grow
+			{
+				byte[] newBuffer = new byte[2 * inflatedBytes.length + 1];
+				System.arraycopy(inflatedBytes, 0, newBuffer, 0, numInflated);
+				inflatedBytes = newBuffer;
+			}
+
+			numOut = inflater.inflate(inflatedBytes, numInflated, inflatedBytes.length - numInflated);
+			numInflated += numOut;
+
+			if (numOut == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+				throw new DataFormatException("Truncated zlib peaks in scan " + scanNumber);
+		}
+
+		return numInflated;
+	}
+
+	// release native inflater memory
+	public void close()
+	{ inflater.end(); }
+
+	static boolean isSpace(byte c)
+	{ return c == ' ' || c == '\n' || c == '\r' || c == '\t'; }
+
+	// compare buffer range with a name
+	boolean equals(int start, int end, byte[] name)
+	{
+		if (end - start != name.length)
+			return false;
+
+		for (int i = 0; i < name.length; i++)
+		{
+			if (buffer[start + i] != name[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	// parse integer attribute value
+	int parseInt(int start, int end)
+	{
+		int value = 0, i = start;
+		boolean negative = false;
+
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+'))
+			negative = (buffer[i++] == '-');
+
+		if (i == end || end - i > 9) // empty or possibly out of range, let the library decide
+			return Integer.parseInt(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1).trim());
+
+		for (; i < end; i++)
+		{
+			if (buffer[i] < '0' || buffer[i] > '9')
+				return Integer.parseInt(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1).trim());
+
+			value = 10 * value + (buffer[i] - '0');
+		}
+
+		return negative ? -value : value;
+	}
+
+	// parse floating-point attribute value
+	// exact fast path when the decimal mantissa and power of ten are both exact doubles, library parser otherwise
+	double parseDouble(int start, int end)
+	{
+		long mantissa = 0;
+		int exponent = 0, i = start, numDigit = 0;
+		boolean negative = false, inexact = false;
+
+		if (i < end && (buffer[i] == '-' || buffer[i] == '+'))
+			negative = (buffer[i++] == '-');
+
+		for (; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++, numDigit++) // integer part
+		{
+			if (mantissa < maxExactMantissa)
+				mantissa = 10 * mantissa + (buffer[i] - '0');
+
+			else
+				inexact = true;
+		}
+
+		if (i < end && buffer[i] == '.')
+		{
+			for (i++; i < end && buffer[i] >= '0' && buffer[i] <= '9'; i++, numDigit++) // fraction part
+			{
+				if (mantissa < maxExactMantissa)
+				{
+					mantissa = 10 * mantissa + (buffer[i] - '0');
+					exponent--;
+				}
+
+				else
+					inexact = true;
+			}
+		}
+
+		if (numDigit > 0 && i < end && (buffer[i] == 'e' || buffer[i] == 'E'))
+		{
+			int exponentStart = ++i, power = 0;
+			boolean negativePower = false;
+
+			if (i < end && (buffer[i] == '-' || buffer[i] == '+'))
+				negativePower = (buffer[i++] == '-');
+
+			for (; i < end && buffer[i] >= '0' && buffer[i] <= '9' && power < 1000; i++)
+				power = 10 * power + (buffer[i] - '0');
+
+			if (i == exponentStart || (i == exponentStart + 1 && buffer[exponentStart] < '0'))
+				inexact = true; // no digits
+
+			exponent += negativePower ? -power : power;
+		}
+
+		if (numDigit == 0 || i != end || inexact || mantissa > maxExactMantissa || exponent < -22 || exponent > 22)
+			return Double.parseDouble(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1));
+
+		double value = (exponent < 0) ? mantissa / powersOfTen[-exponent] : mantissa * powersOfTen[exponent]; // single rounding
+		return negative ? -value : value;
+	}
+
+	// parse xs:duration, e.g. "PT361.5S", into seconds
+	// plain numbers are taken as seconds
+	double parseDuration(int start, int end)
+	{
+		int i = start;
+		boolean negative = false;
+
+		if (i < end && buffer[i] == '-')
+		{
+			negative = true;
+			i++;
+		}
+
+		if (i == end || buffer[i] != 'P')
+			return parseDouble(start, end);
+
+		double seconds = 0;
+		boolean inTime = false;
+		int numberStart = -1;
+
+		for (i++; i < end; i++)
+		{
+			byte c = buffer[i];
+
+			if ((c >= '0' && c <= '9') || c == '.')
+			{
+				if (numberStart < 0)
+					numberStart = i;
+			}
+
+			else if (c == 'T')
+				inTime = true;
+
+			else if (numberStart >= 0)
+			{
+				double value = parseDouble(numberStart, i);
+				numberStart = -1;
+
+				if (c == 'S')
+					seconds += value;
+
+				else if (c == 'M' && inTime)
+					seconds += 60 * value;
+
+				else if (c == 'H')
+					seconds += 3600 * value;
+
+				else if (c == 'D')
+					seconds += 86400 * value;
+			}
+		}
+
+		return negative ? -seconds : seconds;
+	}
+}
@@ -7,6 +7,7 @@ public class NeutralLossGenerator
 	public static final String waterLossResidues = "STDE";
 	public static final String ammoniaLossResidues = "RKQN";
 	public static final String[] neutralLossName = {"H2O", "NH3", "OHSCH3"};
+	public static final int waterFlag = 1, ammoniaFlag = 2, metOxFlag = 4; // bits of neutral loss flags, same order as 'neutralLossName'
 	
     public NeutralLossGenerator()
     {}
@@ -124,18 +125,32 @@ public class NeutralLossGenerator
 		return result;
 	}
 	
-	// determine whether a residue fit any neutral loss rule, then update previous flag
-	public static void updateNeutralLossFlags(PeptideStruct peptide, int position, boolean[] previousFlag)
+	// neutral loss flags of a peptide as bits
+	public static int getNeutralLossMask(PeptideStruct peptide)
+	{
+		boolean[] flags = getNeutralLossFlags(peptide);
+
+		return (flags[0] ? waterFlag : 0) | (flags[1] ? ammoniaFlag : 0) | (flags[2] ? metOxFlag : 0);
+	}
+
+	// neutral loss flags of a crosslink as bits
+	public static int getNeutralLossMask(CrosslinkStruct crosslink)
+	{ return getNeutralLossMask(crosslink.peptideA) | getNeutralLossMask(crosslink.peptideB); }
+
+	// determine whether a residue fit any neutral loss rule, then add to previous flags
+	public static int updateNeutralLossMask(PeptideStruct peptide, int position, int previousMask)
 	{
 		if (!peptide.isModified(position))
 		{
-			String sequence = peptide.getResidue(position) + "";
-			
-			if (!previousFlag[0] && intersect(sequence, waterLossResidues))
-				previousFlag[0] = true;
-			if (!previousFlag[1] && intersect(sequence, ammoniaLossResidues))
-				previousFlag[1] = true;
+			char residue = peptide.getResidue(position);
+
+			if (waterLossResidues.indexOf(residue) >= 0)
+				previousMask |= waterFlag;
+			if (ammoniaLossResidues.indexOf(residue) >= 0)
+				previousMask |= ammoniaFlag;
 			// not consider met oxidation for fragment ions
 		}
+
+		return previousMask;
 	}
 }
\ No newline at end of file
@@ -1,109 +1,163 @@
-import java.util.ArrayList;
-
 // convert from profile to centroided data
+// one centroider per thread, output buffers are reused across scans and only grow
+// profile points below the scan's noise floor can be dropped before centroiding, see 'estimateNoiseLevel()'
 public class PeakCentroider
 {
 	static final double zeroIntensity = 1; // numerical bound for 'practically-zero' intensity valuein full scan
-	
+	static final double minFitIntensity = Math.scalb(1.0, -127); // zero has no logarithm, floor intensity in gaussian fit
+	static final double noiseQuantile = 0.3; // noise level is the median of this fraction of lowest non-zero points
+
+	public double[] mz = new double[0], intensity = new double[0]; // centroided peaks, only the first 'centroid()' entries are valid
+	double[] noiseBuffer = new double[0];
+
 	public PeakCentroider()
 	{}
-	
-	public static double[][] centroided(double[][] spectrum)
+
+	// centroid the first 'numPoint' profile points into 'mz' and 'intensity', return number of peaks
+	// points below 'noiseFactor' times the estimated noise level count as zero, use 0 to keep all but practically-zero points
+	public int centroid(double[] profileMZ, double[] profileIntensity, int numPoint, double noiseFactor)
 	{
-		ArrayList<double[]> localList = new ArrayList<double[]>();
-		
-		int currentStart = 0, currentEnd, currentIntPeak;
-		
-		while (currentStart < spectrum.length)
+		if (mz.length < numPoint) // at most one peak per point
+		{
+			mz = new double[numPoint];
+			intensity = new double[numPoint];
+		}
+
+		double minIntensity = zeroIntensity;
+
+		if (noiseFactor > 0)
+			minIntensity = Math.max(zeroIntensity, noiseFactor * estimateNoiseLevel(profileIntensity, numPoint));
+
+		int numPeak = 0, currentStart = 0, currentEnd, currentIntPeak;
+
+		while (currentStart < numPoint)
 		{
-			while (currentStart < spectrum.length && spectrum[currentStart][1] < zeroIntensity) // move across zero intensity peaks
+			while (currentStart < numPoint && profileIntensity[currentStart] < minIntensity) // move across zero intensity peaks
 				currentStart++;
-			
-			if (currentStart == spectrum.length) // terminate
+
+			if (currentStart == numPoint) // terminate
 				break;
-			
+
 			// all set with start position
 			currentEnd = currentStart + 1;
-			
-			while (currentEnd < spectrum.length && spectrum[currentEnd][1] >= spectrum[currentEnd - 1][1]) // keep climbing a peak
+
+			while (currentEnd < numPoint && profileIntensity[currentEnd] >= profileIntensity[currentEnd - 1]) // keep climbing a peak
 				currentEnd++;
-			
+
 			currentIntPeak = currentEnd - 1; // location of the highest intensity peak
-			
-			if (currentEnd == spectrum.length) // record peak and terminate
+
+			if (currentEnd == numPoint) // record peak and terminate
 			{
-				localList.add(getCentroidData(spectrum, currentStart, currentEnd, currentEnd - 1));				
+				setCentroidData(profileMZ, profileIntensity, numPoint, currentStart, currentEnd, currentEnd - 1, numPeak++);
 				break;
 			}
-			
-			while (currentEnd < spectrum.length && spectrum[currentEnd][1] <= spectrum[currentEnd - 1][1] && spectrum[currentEnd][1] > zeroIntensity) // keep going down hill
+
+			while (currentEnd < numPoint && profileIntensity[currentEnd] <= profileIntensity[currentEnd - 1] && profileIntensity[currentEnd] > minIntensity) // keep going down hill
 				currentEnd++;
 
-			localList.add(getCentroidData(spectrum, currentStart, currentEnd, currentIntPeak));
-			
-			if (currentEnd == spectrum.length) // terminate
+			setCentroidData(profileMZ, profileIntensity, numPoint, currentStart, currentEnd, currentIntPeak, numPeak++);
+
+			if (currentEnd == numPoint) // terminate
 				break;
 			else
 				currentStart = currentEnd; // continue
 		}
-		
-		double[][] output = new double[localList.size()][2];
-		
-		for (int i = 0; i < localList.size(); i++)
-			output[i] = localList.get(i);
-		
-		return output;
+
+		return numPeak;
 	}
-	
-	public static double[] getCentroidData(double[][] spectrum, int start, int end, int peak)
+
+	// centroid points [start, end) with the highest point at 'peak' into peak 'position'
+	void setCentroidData(double[] profileMZ, double[] profileIntensity, int numPoint, int start, int end, int peak, int position)
 	{
-		double[] result = new double[2];
-		
 		if (end - start == 1)
 		{
-			result[0] = spectrum[start][0];
-			result[1] = spectrum[start][1];
-			
-			return result;
+			mz[position] = profileMZ[start];
+			intensity[position] = profileIntensity[start];
+
+			return;
 		}
-		
+
 		if (end - start == 2)
 		{
-			result[0] = (spectrum[start][0] * spectrum[start][1] + spectrum[start + 1][0] * spectrum[start + 1][1]) / (spectrum[start][1] + spectrum[start + 1][1]); // weighted average
-			result[1] = spectrum[start][1] + spectrum[start + 1][1]; // sum
-			
-			return result;
+			mz[position] = (profileMZ[start] * profileIntensity[start] + profileMZ[start + 1] * profileIntensity[start + 1]) / (profileIntensity[start] + profileIntensity[start + 1]); // weighted average
+			intensity[position] = profileIntensity[start] + profileIntensity[start + 1]; // sum
+
+			return;
 		}
-		
+
 		// 3 or more data points
-		int[] centers = new int[3];
-		
-		if (peak == spectrum.length - 1) // peak is at the end of the data
+		int center = (peak == numPoint - 1) ? peak - 1 : peak; // fit around the peak, or its neighbour at the end of the data
+		double sum = 0;
+
+		for (int i = start; i < end; i++)
+			sum += profileIntensity[i]; // sum intensity
+
+		double logInt0 = Math.log(Math.max(profileIntensity[center - 1], minFitIntensity));
+		double logInt1 = Math.log(Math.max(profileIntensity[center], minFitIntensity));
+		double logInt2 = Math.log(Math.max(profileIntensity[center + 1], minFitIntensity));
+		double coeff0 = logInt1 - logInt2, coeff1 = logInt2 - logInt0, coeff2 = logInt0 - logInt1;
+		double mz0 = profileMZ[center - 1], mz1 = profileMZ[center], mz2 = profileMZ[center + 1];
+
+		mz[position] = 0.5 * (coeff0 * Math.pow(mz0, 2) + coeff1 * Math.pow(mz1, 2) + coeff2 * Math.pow(mz2, 2)) / (coeff0 * mz0 + coeff1 * mz1 + coeff2 * mz2); // gaussian fit
+		intensity[position] = sum;
+	}
+
+	// estimate noise level of a profile scan as the median of its lowest non-zero points
+	double estimateNoiseLevel(double[] profileIntensity, int numPoint)
+	{
+		if (noiseBuffer.length < numPoint)
+			noiseBuffer = new double[numPoint];
+
+		int numNonZero = 0;
+
+		for (int i = 0; i < numPoint; i++)
 		{
-			centers[0] = peak - 2;
-			centers[1] = peak - 1;
-			centers[2] = peak;
+			if (profileIntensity[i] >= zeroIntensity)
+				noiseBuffer[numNonZero++] = profileIntensity[i];
 		}
-		
-		else
+
+		if (numNonZero == 0)
+			return 0;
+
+		return select(noiseBuffer, numNonZero, (int) (numNonZero * noiseQuantile) / 2);
+	}
+
+	// return the k-th smallest of the first 'length' values, reorders values
+	static double select(double[] values, int length, int k)
+	{
+		int left = 0, right = length - 1, i, j;
+		double pivot, temp;
+
+		while (left < right)
 		{
-			centers[0] = peak - 1;
-			centers[1] = peak;
-			centers[2] = peak + 1;
+			pivot = values[(left + right) >>> 1];
+			i = left;
+			j = right;
+
+			while (i <= j)
+			{
+				while (values[i] < pivot)
+					i++;
+
+				while (values[j] > pivot)
+					j--;
+
+				if (i <= j)
+				{
+					temp = values[i];
+					values[i++] = values[j];
+					values[j--] = temp;
+				}
+			}
+
+			if (k <= j)
+				right = j;
+			else if (k >= i)
+				left = i;
+			else
+				return values[k];
 		}
-		
-		result[1] = 0;
-		
-		for (int i = start; i < end; i++)
-			result[1] += spectrum[i][1]; // sum intensity
-		
-		double[] coeff = {Math.log(spectrum[centers[1]][1]) - Math.log(spectrum[centers[2]][1]), 
-				Math.log(spectrum[centers[2]][1]) - Math.log(spectrum[centers[0]][1]), 
-				Math.log(spectrum[centers[0]][1]) - Math.log(spectrum[centers[1]][1])};
-		
-		result[0] = 0.5 * (coeff[0] * Math.pow(spectrum[centers[0]][0], 2) + coeff[1] * Math.pow(spectrum[centers[1]][0], 2) + coeff[2] * Math.pow(spectrum[centers[2]][0], 2)) 
-				/ (coeff[0] * spectrum[centers[0]][0] + coeff[1] * spectrum[centers[1]][0] + coeff[2] * spectrum[centers[2]][0]); // gaussian fit
-		
-		return result;
+
+		return values[k];
 	}
 }
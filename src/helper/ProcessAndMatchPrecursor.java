@@ -1,31 +1,57 @@
-import java.io.FileWriter;
+import java.io.IOException;
 import java.util.ArrayList;
 
 // do in silico digestion and precursor matching at the same time
 public class ProcessAndMatchPrecursor implements Runnable
 {
-	SynchronizedTreeMap globalMatches; // global precursor match list
-	SynchronizedTreeMap[] globalResult;
-	ArrayList<Double> peptideResult; // peptide mass lists of this thread name
-	ArrayList<Double> crosslinkResult; // crosslink mass lists of this thread name
+	ThreadMatchStruct[] threadMatches; // per-thread match buffers
+	ThreadMatchStruct localMatches; // match buffer of this thread
 	ArrayList<ProteinStruct> proteins;
 	ThreadLimitStruct scope;
 	ParamStruct param;
-	double massTolerance; // mass tolerance
-	Double[] observedMasses; // list of observed masses, sorted
-	Integer[] indexedObservedMasses; // map to original precursor ID
+	PrecursorIndexStruct precursorIndex; // read-only index of observed masses
+	PeptideFormIndexStruct[] partnerForms; // crosslink partners of each protein, shared by all tasks
+	int[] matchedRange = new int[2]; // reusable output of 'precursorIndex.match()'
 	int threadID;
 	
-	public ProcessAndMatchPrecursor(SynchronizedTreeMap[] globalResult, ArrayList<ProteinStruct> proteins, ThreadLimitStruct scope, ParamStruct param, SynchronizedTreeMap globalMatches, Double[] observedMasses, Integer[] indexedObservedMasses)
+	public ProcessAndMatchPrecursor(ArrayList<ProteinStruct> proteins, ThreadLimitStruct scope, ParamStruct param, PrecursorIndexStruct precursorIndex, PeptideFormIndexStruct[] partnerForms, ThreadMatchStruct[] threadMatches)
 	{
-		this.globalResult = globalResult;
    		this.proteins = proteins;
    		this.scope = scope;
 		this.param = param;
-		this.globalMatches = globalMatches;
-		this.observedMasses = observedMasses;
-		this.indexedObservedMasses = indexedObservedMasses;
-   		massTolerance = param.precursorTolerance;
+		this.precursorIndex = precursorIndex;
+		this.partnerForms = partnerForms;
+		this.threadMatches = threadMatches;
+	}
+	
+	// check peptide mass against observed masses, record and write to file only if matched
+	public void checkMassAndWrite(PeptideStruct peptide, CandidateWriter writer) throws IOException
+	{
+		double mass = MassInfo.getPrecursorMass(peptide);
+		if (precursorIndex.match(mass, matchedRange) > 0) // found some matches
+		{
+			ThreadPeptideStruct tempThreadPeptide = new ThreadPeptideStruct(threadID, false, localMatches.numPeptide);
+			localMatches.numPeptide++;
+			writer.write(peptide); // only write matched peptides
+
+			for (int i = matchedRange[0]; i < matchedRange[1]; i++) // update matches
+				localMatches.add(precursorIndex.precursorIDs[i], tempThreadPeptide);
+		}
+	}
+
+	// check crosslink mass against observed masses, record and write to file only if matched
+	// 'mass' is the crosslink mass from 'MassInfo.getPrecursorMass()' of both peptides
+	public void checkMassAndWrite(PeptideStruct peptideA, PeptideStruct peptideB, double mass, CandidateWriter writer) throws IOException
+	{
+		if (precursorIndex.match(mass, matchedRange) > 0) // found some matches
+		{
+			ThreadPeptideStruct tempThreadPeptide = new ThreadPeptideStruct(threadID, true, localMatches.numCrosslink);
+			localMatches.numCrosslink++;
+			writer.write(peptideA, peptideB); // only write matched crosslinks
+
+			for (int i = matchedRange[0]; i < matchedRange[1]; i++) // update matches
+				localMatches.add(precursorIndex.precursorIDs[i], tempThreadPeptide);
+		}
 	}
 	
     // check whether two peptides are adjacent
@@ -81,6 +107,83 @@ public class ProcessAndMatchPrecursor implements Runnable
 	}
 
    	
+	// return crosslink partners of a protein, shared by all tasks
+	// the first task asking for a protein builds them, other tasks asking for the same protein wait
+	public PeptideFormIndexStruct getPartners(ProteinStruct protein)
+	{
+		synchronized (protein) // one lock per protein
+		{
+			if (partnerForms[protein.entryID] == null)
+				partnerForms[protein.entryID] = getPeptideForms(protein);
+
+			return partnerForms[protein.entryID];
+		}
+	}
+
+	// generate all modified forms of all peptides of a protein
+	// sorted by mass to be used as crosslink partners
+	public PeptideFormIndexStruct getPeptideForms(ProteinStruct protein)
+	{
+		ArrayList<Integer> cleaveSites = protein.getCleaveSites();
+		ArrayList<PeptideStruct> formList = new ArrayList<PeptideStruct>();
+		ArrayList<PeptideStruct> originalList = new ArrayList<PeptideStruct>();
+		ArrayList<int[]> positions = new ArrayList<int[]>();
+		ArrayList<PeptideStruct> templist;
+		PeptideStruct temppeptide;
+		int tempint;
+
+		for (int i = 0; i < cleaveSites.size() - 1; i++) // for each starting position
+		for (int j = 0; j < param.maxMissedCleave; j++) // for each level of missed cleavage
+		{
+			if (i + j + 1 < cleaveSites.size()) // make sure to not exceed the end of sequence
+			{
+				tempint = protein.getSequenceLength(false, cleaveSites.get(i) + 1, cleaveSites.get(i + j + 1));
+
+				if (tempint >= param.minPeptideLength && tempint <= param.maxPeptideLength) // check sequence length
+				{
+					temppeptide = new PeptideStruct(protein, cleaveSites.get(i) + 1, cleaveSites.get(i + j + 1));
+					templist = new ArrayList<PeptideStruct>();
+					generateAllModForms(0, temppeptide, templist); // populate variable modifications
+
+					for (int k = 0; k < templist.size(); k++) // for each form of this peptide
+					{
+						formList.add(templist.get(k));
+						originalList.add(temppeptide);
+						positions.add(new int[] {i, j});
+					}
+				}
+			}
+		}
+
+		return new PeptideFormIndexStruct(formList, originalList, positions, param.crosslinker);
+	}
+
+	// return first partner at or after 'p' whose crosslink mass with a peptide1 form of mass 'mass1' is close to some observed mass, 'end' if none
+	// runs of partners falling between two observed masses are skipped by binary search, so only partners near a precursor hit are visited
+	int nextPartner(PeptideFormIndexStruct partners, int p, int end, double mass1)
+	{
+		double deltaMass = param.crosslinker.deltaMass, mass, lowestMass;
+		int observed;
+
+		while (p < end)
+		{
+			mass = mass1 + partners.masses[p] + deltaMass;
+			observed = precursorIndex.firstReachable(mass); // lighter observed masses are out of reach for this and all heavier partners
+
+			if (observed == precursorIndex.size())
+				return end;
+
+			lowestMass = precursorIndex.getLowestMatch(observed);
+
+			if (mass >= lowestMass)
+				return p;
+
+			p = Math.max(p + 1, partners.lowerIndex(lowestMass - mass1 - deltaMass)); // jump to the first partner able to reach that observed mass
+		}
+
+		return end;
+	}
+
    	public void run()
     {
    		ProteinStruct protein1 = null, protein2 = null;
@@ -91,19 +194,12 @@ public class ProcessAndMatchPrecursor implements Runnable
    		
         try
         {
-        	FileWriter outfilePeptide, outfileCrosslink;
-        	peptideResult = new ArrayList<Double>();
-        	crosslinkResult = new ArrayList<Double>();
+        	CandidateWriter outfilePeptide, outfileCrosslink;
+        	localMatches = threadMatches[threadID];
 
-			if (globalResult[0].get(threadName).size() == 0) // create new file for the first time
-				outfilePeptide = new FileWriter(".\\temp\\peptide-" + threadName + ".temp"); // outfilePeptide = new BufferedWriter(new FileWriter(".\\temp\\peptide-" + threadName + ".temp"));
-			else // append otherwise
-				outfilePeptide = new FileWriter(".\\temp\\peptide-" + threadName + ".temp", true); // outfilePeptide = new BufferedWriter(new FileWriter(".\\temp\\peptide-" + threadName + ".temp", true));
-
-			if (globalResult[1].get(threadName).size() == 0) // create new file for the first time
-				outfileCrosslink = new FileWriter(".\\temp\\crosslink-" + threadName + ".temp"); // outfileCrosslink = new BufferedWriter(new FileWriter(".\\temp\\crosslink-" + threadName + ".temp"));
-			else // append otherwise
-				outfileCrosslink = new FileWriter(".\\temp\\crosslink-" + threadName + ".temp", true); // outfileCrosslink = new BufferedWriter(new FileWriter(".\\temp\\crosslink-" + threadName + ".temp", true));
+			// create new file for the first time, append otherwise
+			outfilePeptide = new CandidateWriter(param.getCandidateFileName(false, threadID), localMatches.numPeptide > 0, param.maxVarModPerPeptide);
+			outfileCrosslink = new CandidateWriter(param.getCandidateFileName(true, threadID), localMatches.numCrosslink > 0, param.maxVarModPerPeptide);
 
 		// CODE FOR DEBUGGING THREADING
 			// PeptideStruct peptide = new PeptideStruct(proteins.get(0), 1, 5);
@@ -116,7 +212,6 @@ public class ProcessAndMatchPrecursor implements Runnable
 			ArrayList<PeptideStruct> templist1;
 			// String combinedOutput = "";
 			int tempint;
-			double tempmass;
 
 			if (scope.sourceID2 == -1) // linear peptide, dead-end, or loop
 			{
@@ -141,8 +236,7 @@ public class ProcessAndMatchPrecursor implements Runnable
 								// peptideResult.add(new Double(MassInfo.getMass(templist1.get(k)))); // record mass
 								// outfilePeptide.write(Base64Parser.encodeBase64(templist1.get(k), param.maxVarModPerPeptide)); // output peptide to file
 								// globalResult[0].addAndWrite(threadName, new Double(MassInfo.getMass(templist1.get(k))), outfilePeptide, Base64Parser.encodeBase64(templist1.get(k), param.maxVarModPerPeptide));
-								tempmass = MassInfo.getMass(templist1.get(k));
-								globalResult[0].checkMassAddAndWrite(threadName, new Double(tempmass), outfilePeptide, Base64Parser.encodeBase64(templist1.get(k), param.maxVarModPerPeptide), observedMasses, indexedObservedMasses, tempmass, massTolerance, globalMatches, threadID, false);
+								checkMassAndWrite(templist1.get(k), outfilePeptide); // record and write only matched peptides
 								
 								if (param.hasDeadEnd()) // generate loop // dead-ends were taken care of as variable modifications
 								{
@@ -159,13 +253,15 @@ public class ProcessAndMatchPrecursor implements Runnable
 				return;
 			}
 
-			PeptideStruct temppeptide2;
 			boolean[] crosslinkSites;
-			ArrayList<PeptideStruct> templist2;
-			CrosslinkStruct crosslink;
+			PeptideFormIndexStruct partners; // candidate peptide2 forms, sorted by mass
+			double mass1, deltaMass = param.crosslinker.deltaMass;
+			int begin, end;
 
 			if (scope.sourceID2 == scope.sourceID1) // same-protein crosslink
 			{
+				partners = getPartners(protein1); // peptide2 starting before peptide1 are skipped below
+
 				for (int i1 = scope.startID; i1 < scope.endID + 1; i1++) // for each starting position
 				for (int j1 = 0; j1 < param.maxMissedCleave; j1++) // for each level of missed cleavage
 				{
@@ -185,78 +281,21 @@ public class ProcessAndMatchPrecursor implements Runnable
 							for (int k1 = 0; k1 < templist1.size(); k1++) // for each form of this peptide
 							{
 								crosslinkSites = CrosslinkSiteIdentifier.containsCrosslinkSites(templist1.get(k1), param.crosslinker); // preprocess crosslink site
-								
-								for (int j2 = j1 + 1; j2 < param.maxMissedCleave; j2++) // same start site, different missed cleavage
-								{
-									if (i1 + j2 + 1 < cleaveSites1.size()) // make sure to not exceed the end of sequence
-									{
-										tempint = protein1.getSequenceLength(false, cleaveSites1.get(i1) + 1, cleaveSites1.get(i1 + j2 + 1));
-
-										if (tempint >= param.minPeptideLength && tempint <= param.maxPeptideLength) // check sequence length
-										{
-											temppeptide2 = new PeptideStruct(protein1, cleaveSites1.get(i1) + 1, cleaveSites1.get(i1 + j2 + 1));
-											// System.out.println(threadName + ":" + temppeptide2.toString());
-
-											if (param.allowAdjacent || !isAdjacent(temppeptide1, temppeptide2)) // check adjacent peptides
-											{
-												if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, temppeptide2, param.crosslinker)) // original peptide2 crosslinkable
-												{
-													templist2 = new ArrayList<PeptideStruct>();
-													generateAllModForms(0, temppeptide2, templist2); // populate variable modifications
-
-													for (int k2 = 0; k2 < templist2.size(); k2++) // for each form of this peptide
-													{
-														if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, templist2.get(k2), param.crosslinker)) // final peptide crosslinkable
-														{
-															crosslink = new CrosslinkStruct(templist1.get(k1), templist2.get(k2)); // create crosslink
-															// crosslinkResult.add(new Double(MassInfo.getMass(crosslink, param))); // record mass
-															// outfileCrosslink.write(Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide)); // output peptide to file
-															// globalResult[1].addAndWrite(threadName, new Double(MassInfo.getMass(crosslink, param)), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide));
-															tempmass = MassInfo.getMass(crosslink, param);
-															globalResult[1].checkMassAddAndWrite(threadName, new Double(tempmass), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide), observedMasses, indexedObservedMasses, tempmass, massTolerance, globalMatches, threadID, true);
-														}
-													}
-												}
-											}
-										}
-									}
-								}
+								mass1 = MassInfo.getPrecursorMass(templist1.get(k1));
+								begin = partners.lowerIndex(precursorIndex.lowerBound - mass1 - deltaMass); // partners outside the observed mass range can never match
+								end = partners.upperIndex(precursorIndex.upperBound - mass1 - deltaMass);
 
-								for (int i2 = i1 + 1; i2 < cleaveSites1.size() - 1; i2++) // for peptide starting after current startID
-								for (int j2 = 0; j2 < param.maxMissedCleave; j2++) // for each level of missed cleavage
+								for (int p = nextPartner(partners, begin, end, mass1); p < end; p = nextPartner(partners, p + 1, end, mass1)) // for each form of peptide2 close to an observed mass
 								{
-									if (i2 + j2 + 1 < cleaveSites1.size()) // make sure to not exceed the end of sequence
+									if (partners.startIDs[p] == i1 && partners.missedCleaves[p] <= j1) // same start site, only pair with longer peptide2
+										continue;
+									if (partners.startIDs[p] < i1) // each pair only once
+										continue;
+
+									if (param.allowAdjacent || !isAdjacent(temppeptide1, partners.forms[p])) // check adjacent peptides
 									{
-										tempint = protein1.getSequenceLength(false, cleaveSites1.get(i2) + 1, cleaveSites1.get(i2 + j2 + 1));
-
-										if (tempint >= param.minPeptideLength && tempint <= param.maxPeptideLength) // check sequence length
-										{
-											temppeptide2 = new PeptideStruct(protein1, cleaveSites1.get(i2) + 1, cleaveSites1.get(i2 + j2 + 1));
-											// System.out.println(threadName + ":" + temppeptide2.toString());
-											
-											if (param.allowAdjacent || !isAdjacent(temppeptide1, temppeptide2)) // check adjacent peptides
-											{
-												if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, temppeptide2, param.crosslinker)) // original peptide2 crosslinkable
-												{
-													templist2 = new ArrayList<PeptideStruct>();
-													generateAllModForms(0, temppeptide2, templist2); // populate variable modifications
-	
-													for (int k2 = 0; k2 < templist2.size(); k2++) // for each form of this peptide
-													{
-														if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, templist2.get(k2), param.crosslinker)) // final peptide crosslinkable
-														{
-															crosslink = new CrosslinkStruct(templist1.get(k1), templist2.get(k2)); // create crosslink
-															// crosslinkResult.add(new Double(MassInfo.getMass(crosslink, param))); // record mass
-															// outfileCrosslink.write(Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide)); // output peptide to file
-															// globalResult[1].addAndWrite(threadName, new Double(MassInfo.getMass(crosslink, param)), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide));
-															tempmass = MassInfo.getMass(crosslink, param);
-															globalResult[1].checkMassAddAndWrite(threadName, new Double(tempmass), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide), observedMasses, indexedObservedMasses, tempmass, massTolerance, globalMatches, threadID, true);
-
-														}
-													}
-												}
-											}
-										}
+										if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, partners.originalSites[p]) && CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, partners.formSites[p])) // original and final peptide2 crosslinkable
+											checkMassAndWrite(templist1.get(k1), partners.forms[p], mass1 + partners.masses[p] + deltaMass, outfileCrosslink); // record and write only matched crosslinks
 									}
 								}
 							}
@@ -273,7 +312,7 @@ public class ProcessAndMatchPrecursor implements Runnable
 
 			// inter-protein crosslink
 			protein2 = proteins.get(scope.sourceID2);
-			ArrayList<Integer> cleaveSites2 = protein2.getCleaveSites();
+			partners = getPartners(protein2);
 
 			for (int i1 = scope.startID; i1 < scope.endID + 1; i1++) // for each starting position
 			for (int j1 = 0; j1 < param.maxMissedCleave; j1++) // for each level of missed cleavage
@@ -294,39 +333,14 @@ public class ProcessAndMatchPrecursor implements Runnable
 						for (int k1 = 0; k1 < templist1.size(); k1++) // for each form of this peptide
 						{
 							crosslinkSites = CrosslinkSiteIdentifier.containsCrosslinkSites(templist1.get(k1), param.crosslinker); // preprocess crosslink site
+							mass1 = MassInfo.getPrecursorMass(templist1.get(k1));
+							begin = partners.lowerIndex(precursorIndex.lowerBound - mass1 - deltaMass); // partners outside the observed mass range can never match
+							end = partners.upperIndex(precursorIndex.upperBound - mass1 - deltaMass);
 
-							for (int i2 = 0; i2 < cleaveSites2.size() - 1; i2++) // for each starting position on second protein
-							for (int j2 = 0; j2 < param.maxMissedCleave; j2++) // for each level of missed cleavage
+							for (int p = nextPartner(partners, begin, end, mass1); p < end; p = nextPartner(partners, p + 1, end, mass1)) // for each form of peptide2 close to an observed mass
 							{
-								if (i2 + j2 + 1 < cleaveSites2.size()) // make sure to not exceed the end of sequence
-								{
-									tempint = protein2.getSequenceLength(false, cleaveSites2.get(i2) + 1, cleaveSites2.get(i2 + j2 + 1));
-
-									if (tempint >= param.minPeptideLength && tempint <= param.maxPeptideLength) // check sequence length
-									{
-										temppeptide2 = new PeptideStruct(protein2, cleaveSites2.get(i2) + 1, cleaveSites2.get(i2 + j2 + 1));
-										// System.out.println(threadName + ":" + temppeptide2.toString());
-
-										if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, temppeptide2, param.crosslinker)) // original peptide2 crosslinkable
-										{
-											templist2 = new ArrayList<PeptideStruct>();
-											generateAllModForms(0, temppeptide2, templist2); // populate variable modifications
-
-											for (int k2 = 0; k2 < templist2.size(); k2++) // for each form of this peptide
-											{
-												if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, templist2.get(k2), param.crosslinker)) // final peptide crosslinkable
-												{
-													crosslink = new CrosslinkStruct(templist1.get(k1), templist2.get(k2)); // create crosslink
-													// crosslinkResult.add(new Double(MassInfo.getMass(crosslink, param))); // record mass
-													// outfileCrosslink.write(Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide)); // output peptide to file
-													// globalResult[1].addAndWrite(threadName, new Double(MassInfo.getMass(crosslink, param)), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide));
-													tempmass = MassInfo.getMass(crosslink, param);
-													globalResult[1].checkMassAddAndWrite(threadName, new Double(tempmass), outfileCrosslink, Base64Parser.encodeBase64(crosslink, param.maxVarModPerPeptide), observedMasses, indexedObservedMasses, tempmass, massTolerance, globalMatches, threadID, true);
-												}
-											}
-										}
-									}
-								}
+								if (CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, partners.originalSites[p]) && CrosslinkSiteIdentifier.isCrosslinkable(crosslinkSites, partners.formSites[p])) // original and final peptide2 crosslinkable
+									checkMassAndWrite(templist1.get(k1), partners.forms[p], mass1 + partners.masses[p] + deltaMass, outfileCrosslink); // record and write only matched crosslinks
 							}
 						}
 					}
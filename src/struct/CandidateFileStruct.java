@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+// read-only memory-mapped view of a candidate temp file, i.e. fixed-width records written by 'CandidateWriter'
+// files over 2 GB are mapped in chunks of whole records
+// records are decoded with absolute reads only, so one instance can be shared by all threads
+public class CandidateFileStruct
+{
+	final MappedByteBuffer[] chunks;
+	final int recordLength, recordsPerChunk;
+	public final long numRecord;
+
+	public CandidateFileStruct(String fname, int recordLength) throws IOException
+	{
+		RandomAccessFile file = new RandomAccessFile(fname, "r");
+		FileChannel channel = file.getChannel();
+		long size = channel.size();
+
+		this.recordLength = recordLength;
+		recordsPerChunk = Integer.MAX_VALUE / recordLength;
+		numRecord = size / recordLength;
+
+		long chunkSize = (long) recordsPerChunk * recordLength;
+		int numChunk = (int) ((size + chunkSize - 1) / chunkSize);
+		chunks = new MappedByteBuffer[numChunk];
+
+		for (int i = 0; i < numChunk; i++)
+			chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, i * chunkSize, Math.min(chunkSize, size - i * chunkSize));
+
+		file.close(); // mappings stay valid after the channel is closed
+	}
+
+	// return chunk containing a record
+	ByteBuffer getChunk(int recordID)
+	{ return chunks[recordID / recordsPerChunk]; }
+
+	// return offset of a record within its chunk
+	int getOffset(int recordID)
+	{ return (recordID % recordsPerChunk) * recordLength; }
+
+	// decode peptide record
+	public PeptideStruct getPeptide(int peptideID, ArrayList<ProteinStruct> proteins, int maxVarModPerPeptide)
+	{ return new PeptideStruct(proteins, getChunk(peptideID), getOffset(peptideID), maxVarModPerPeptide); }
+
+	// decode crosslink record
+	public CrosslinkStruct getCrosslink(int crosslinkID, ArrayList<ProteinStruct> proteins, int maxVarModPerPeptide)
+	{ return new CrosslinkStruct(proteins, getChunk(crosslinkID), getOffset(crosslinkID), maxVarModPerPeptide); }
+}
@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 // data structure for crosslinked peptides
@@ -25,6 +26,17 @@ public class CrosslinkStruct
 		this.peptideB = new PeptideStruct(proteins, dataB);
 	}
 
+	// decode fixed-width binary record at 'offset', two peptide records written by 'CandidateWriter'
+	public CrosslinkStruct(ArrayList<ProteinStruct> proteins, ByteBuffer buffer, int offset, int maxVarModPerPeptide)
+	{
+		this.peptideA = new PeptideStruct(proteins, buffer, offset, maxVarModPerPeptide);
+		this.peptideB = new PeptideStruct(proteins, buffer, offset + PeptideStruct.getRecordLength(maxVarModPerPeptide), maxVarModPerPeptide);
+	}
+
+	// return length in bytes of binary record
+	public static int getRecordLength(int maxVarModPerPeptide)
+	{ return 2 * PeptideStruct.getRecordLength(maxVarModPerPeptide); }
+
 	public String toString()
 	{
 		String details = "peptideA: " + peptideA.toString();
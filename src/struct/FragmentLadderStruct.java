@@ -0,0 +1,154 @@
+// theoretical fragmented ions of a peptide or crosslink as parallel primitive arrays, filled in one pass by 'FragmentGenerator'
+// entry 0 is the precursor, followed by b and y ions in generation order
+// derived ions, i.e. a-ions, neutral losses and C13 peaks, are not stored but described by a variant bitmask on top of an entry
+// reused for every candidate of a batch, arrays only grow
+public class FragmentLadderStruct
+{
+	// ion type, low bits of 'type'
+	public static final byte precursorIon = 0, bIon = 1, yIon = 2;
+	static final byte ionTypeMask = 3;
+	public static final byte linked = 4; // crosslinked ion, i.e. carrying the other peptide
+	public static final byte secondPeptide = 8; // derived from second peptide of a crosslink
+
+	// variant bitmask, number of water and ammonia losses in the low bytes
+	public static final int ammoniaShift = 8;
+	public static final int countMask = 0xFF;
+	public static final int metOxVariant = 1 << 16; // loss of (OH)S(CH3)
+	public static final int aIonVariant = 1 << 17; // loss of CO
+	public static final int c13Variant = 1 << 18; // heavy isotope peak
+
+	public double[] mass = new double[0];
+	public byte[] type = new byte[0];
+	public short[] ionID = new short[0]; // 1, 2, ..., -1 for precursor
+	public byte[] flags = new byte[0]; // neutral losses this ion can have, see 'NeutralLossGenerator'
+	public int size;
+
+	public FragmentLadderStruct()
+	{}
+
+	// empty the ladder for 'capacity' ions
+	public void clear(int capacity)
+	{
+		if (mass.length < capacity)
+		{
+			mass = new double[capacity];
+			type = new byte[capacity];
+			ionID = new short[capacity];
+			flags = new byte[capacity];
+		}
+
+		size = 0;
+	}
+
+	public void add(byte ionType, int id, double ionMass, int neutralLossFlags)
+	{
+		mass[size] = ionMass;
+		type[size] = ionType;
+		ionID[size] = (short) id;
+		flags[size++] = (byte) neutralLossFlags;
+	}
+
+	// mass of a derived ion, losses are applied one at a time in the order of their names, i.e. "-CO-H2O-NH3-OHSCH3"
+	public double getMass(int ion, int variant)
+	{
+		double result = mass[ion];
+
+		if ((variant & c13Variant) != 0)
+			return result + MassInfo.neutron;
+
+		if ((variant & aIonVariant) != 0)
+			result -= MassInfo.aIonLoss;
+
+		for (int i = variant & countMask; i > 0; i--)
+			result -= MassInfo.water;
+
+		for (int i = (variant >>> ammoniaShift) & countMask; i > 0; i--)
+			result -= MassInfo.ammonia;
+
+		if ((variant & metOxVariant) != 0)
+			result -= MassInfo.metOxLoss;
+
+		return result;
+	}
+
+	// variant with neutral losses
+	public static int getVariant(int numWater, int numAmmonia, boolean metOx)
+	{ return numWater | (numAmmonia << ammoniaShift) | (metOx ? metOxVariant : 0); }
+
+	public static char getIonType(byte type)
+	{
+		switch (type & ionTypeMask)
+		{
+			case bIon:
+				return 'b';
+
+			case yIon:
+				return 'y';
+
+			default:
+				return 'p';
+		}
+	}
+
+	public static boolean isPrecursor(byte type)
+	{ return (type & ionTypeMask) == precursorIon; }
+
+	public static boolean isCrosslink(byte type)
+	{ return (type & linked) != 0; }
+
+	public static boolean fromSecondPeptide(byte type)
+	{ return (type & secondPeptide) != 0; }
+
+	// indicator of whether the ion is unmodified b or y ion
+	public static boolean isMajorIon(byte type, int variant)
+	{ return !isPrecursor(type) && variant == 0; }
+
+	// indicator of whether the ion is unmodified a, b, or y ion
+	public static boolean isUnmodifiedABYIon(byte type, int variant)
+	{ return !isPrecursor(type) && (variant == 0 || variant == aIonVariant); }
+
+	// construct unique name for a derived ion
+	public static String getName(byte type, int ionID, int variant)
+	{
+		String name = getMajorTag(type, ionID);
+
+		if (!isPrecursor(type) && isCrosslink(type))
+			name += "-linked";
+
+		if ((variant & c13Variant) != 0)
+			return name + "-C13";
+
+		if ((variant & aIonVariant) != 0)
+			name += "-CO";
+
+		for (int i = variant & countMask; i > 0; i--)
+			name += "-H2O";
+
+		for (int i = (variant >>> ammoniaShift) & countMask; i > 0; i--)
+			name += "-NH3";
+
+		if ((variant & metOxVariant) != 0)
+			name += "-OHSCH3";
+
+		return name;
+	}
+
+	// return major tag only
+	public static String getMajorTag(byte type, int ionID)
+	{
+		if (isPrecursor(type)) // precursor ion
+			return "precursor";
+
+		return (fromSecondPeptide(type) ? "B" : "A") + getIonType(type) + "-" + ionID;
+	}
+
+	public String toString()
+	{
+		String details = "";
+
+		for (int i = 0; i < size; i++)
+			details += "name: " + getName(type[i], ionID[i], 0) + ", mass: " + mass[i] + ", flags: " + flags[i] + "\n";
+
+		return details;
+	}
+}
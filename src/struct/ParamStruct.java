@@ -29,6 +29,7 @@ public class ParamStruct
 	// MS/MS PREPROCESSING
 	public final double minPeakInt; // minimum peak intensity to take into account when computing matches
 	public final double minPeakIntToScore; // minimum peak intensity to take into account when computing IntCov and PeakCov scores
+	public final double centroidNoiseFactor; // profile MS/MS only, drop points below this multiple of the scan's noise level before centroiding, 0 to disable
 	public final double isotopeWindowppm;
 	public final boolean performDeisotope;
 
@@ -46,8 +47,9 @@ public class ParamStruct
 	
 	// MISC
 	public final int numCPU;
-	public final int peptideStructBase64Length;
-	public final int crosslinkStructBase64Length; // length of base64 code
+	public final int peptideRecordLength;
+	public final int crosslinkRecordLength; // length of binary candidate records, in bytes
+	public final String runID = Long.toString(System.currentTimeMillis()); // names the candidate temp files of this run
 	
 	// OUTPUT
 	public final double minScoreTargetList; // minimum GM score to output to target list 
@@ -91,6 +93,7 @@ public class ParamStruct
 		// PEAK INTENSITY
 		minPeakInt = 1000;
 		minPeakIntToScore = 5000;
+		centroidNoiseFactor = 0;
 		
 		// DE-ISOTOPING
 		isotopeWindowppm = 20;
@@ -116,8 +119,8 @@ public class ParamStruct
 		outputTargetList = false;
 
 		// AUTOMATICALLY SET
-		peptideStructBase64Length = (32 * (3 + 2 * maxMissedCleave) + 2 * (maxMissedCleave % 3)) / 6;
-		crosslinkStructBase64Length = peptideStructBase64Length * 2;
+		peptideRecordLength = PeptideStruct.getRecordLength(maxVarModPerPeptide);
+		crosslinkRecordLength = CrosslinkStruct.getRecordLength(maxVarModPerPeptide);
 	}
 
 	// load
@@ -199,6 +202,7 @@ public class ParamStruct
 			// PEAK INTENSITY
 			minPeakInt = Double.parseDouble(paramValue.get("minPeakInt"));
 			minPeakIntToScore = Double.parseDouble(paramValue.get("minPeakIntToScore"));
+			centroidNoiseFactor = (paramValue.get("centroidNoiseFactor") != null) ? Double.parseDouble(paramValue.get("centroidNoiseFactor")) : 0; // optional, older parameter files do not have it
 			
 			// DE-ISOTOPING
 			isotopeWindowppm = Double.parseDouble(paramValue.get("isotopeWindowppm"));
@@ -239,8 +243,8 @@ public class ParamStruct
 			}
 			
 			// AUTOMATICALLY SET
-			peptideStructBase64Length = (32 * (3 + 2 * maxMissedCleave) + 2 * (maxMissedCleave % 3)) / 6;
-			crosslinkStructBase64Length = peptideStructBase64Length * 2;
+			peptideRecordLength = PeptideStruct.getRecordLength(maxVarModPerPeptide);
+			crosslinkRecordLength = CrosslinkStruct.getRecordLength(maxVarModPerPeptide);
 		}
 		
 		else // this must be a re-processing attempt
@@ -275,6 +279,7 @@ public class ParamStruct
 			// PEAK INTENSITY
 			minPeakInt = 1000;
 			minPeakIntToScore = 5000;
+			centroidNoiseFactor = 0;
 			
 			// DE-ISOTOPING
 			isotopeWindowppm = 20;
@@ -300,11 +305,16 @@ public class ParamStruct
 			outputTargetList = false;
 
 			// AUTOMATICALLY SET
-			peptideStructBase64Length = (32 * (3 + 2 * maxMissedCleave) + 2 * (maxMissedCleave % 3)) / 6;
-			crosslinkStructBase64Length = peptideStructBase64Length * 2;
+			peptideRecordLength = PeptideStruct.getRecordLength(maxVarModPerPeptide);
+			crosslinkRecordLength = CrosslinkStruct.getRecordLength(maxVarModPerPeptide);
 		}
 	}
 
+	// return per-thread candidate temp file of this run
+	// named after the run, so files of an earlier run in this JVM that are still memory-mapped are never reopened
+	public String getCandidateFileName(boolean isCrosslink, int threadID)
+	{ return ".\\temp\\" + (isCrosslink ? "crosslink" : "peptide") + "-thread-" + threadID + "-" + runID + ".temp"; }
+
 	// return whether the crosslinker can generate dead-ends
 	public boolean hasDeadEnd()
 	{ return crosslinker.hasDeadEnd; }
@@ -0,0 +1,81 @@
+import java.util.ArrayList;
+
+// all modified forms of the peptides of one protein, sorted by mass
+// used as crosslink partners, so that only partners able to reach an observed precursor mass are visited
+public class PeptideFormIndexStruct
+{
+	public final double[] masses; // mass of each form, sorted
+	public final PeptideStruct[] forms; // peptide form, same order as 'masses'
+	public final boolean[][] formSites, originalSites; // crosslink sites of each form and of its unmodified peptide
+	public final int[] startIDs, missedCleaves; // cleavage site index and missed cleavage level of each form
+
+	// 'positions' hold {startID, missedCleave} of each form
+	public PeptideFormIndexStruct(ArrayList<PeptideStruct> formList, ArrayList<PeptideStruct> originalList, ArrayList<int[]> positions, CrosslinkerStruct crosslinker)
+	{
+		int n = formList.size();
+		Double[] sorted = new Double[n];
+
+		for (int i = 0; i < n; i++)
+			sorted[i] = Double.valueOf(MassInfo.getPrecursorMass(formList.get(i)));
+
+		Integer[] index = HelperFunctions.getIndexArray(sorted); // sort once, boxing is fine here
+		masses = new double[n];
+		forms = new PeptideStruct[n];
+		formSites = new boolean[n][];
+		originalSites = new boolean[n][];
+		startIDs = new int[n];
+		missedCleaves = new int[n];
+		int id;
+
+		for (int i = 0; i < n; i++)
+		{
+			id = index[i].intValue();
+			masses[i] = sorted[i].doubleValue();
+			forms[i] = formList.get(id);
+			formSites[i] = CrosslinkSiteIdentifier.containsCrosslinkSites(forms[i], crosslinker);
+			originalSites[i] = CrosslinkSiteIdentifier.containsCrosslinkSites(originalList.get(id), crosslinker);
+			startIDs[i] = positions.get(id)[0];
+			missedCleaves[i] = positions.get(id)[1];
+		}
+	}
+
+	// return number of forms
+	public int size()
+	{ return masses.length; }
+
+	// return first index with mass >= 'mass'
+	public int lowerIndex(double mass)
+	{
+		int low = 0, high = masses.length, mid;
+
+		while (low < high)
+		{
+			mid = (low + high) >>> 1;
+
+			if (masses[mid] < mass)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	// return first index with mass > 'mass'
+	public int upperIndex(double mass)
+	{
+		int low = 0, high = masses.length, mid;
+
+		while (low < high)
+		{
+			mid = (low + high) >>> 1;
+
+			if (masses[mid] <= mass)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+}
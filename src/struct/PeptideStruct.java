@@ -1,3 +1,4 @@
+import java.nio.ByteBuffer;
 import java.util.TreeMap;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -8,6 +9,7 @@ public class PeptideStruct
 	public final ProteinStruct parent;
 	public final int startPos, endPos;
 	public final TreeMap<Integer, ModificationStruct> varModMap;
+	double modDeltaMass; // total delta mass of all modifications, kept in sync with 'varModMap'
 
 	public PeptideStruct(ProteinStruct parent, int startPos, int endPos)
 	{
@@ -15,6 +17,7 @@ public class PeptideStruct
 		this.startPos = startPos;
 		this.endPos = endPos;
 		varModMap = new TreeMap<Integer, ModificationStruct>();
+		modDeltaMass = 0;
 	}
 
 	public PeptideStruct(ProteinStruct parent, int startPos, int endPos, TreeMap<Integer,ModificationStruct> varModMap)
@@ -23,6 +26,7 @@ public class PeptideStruct
 		this.startPos = startPos;
 		this.endPos = endPos;
 		this.varModMap = new TreeMap<Integer, ModificationStruct>(varModMap); // TreeMap can be safely cloned
+		modDeltaMass = sumModDeltaMass();
 	}
 
 	public PeptideStruct(ArrayList<ProteinStruct> proteins, int[] data)
@@ -39,18 +43,83 @@ public class PeptideStruct
 			else
 				break;
 		}
+
+		modDeltaMass = sumModDeltaMass();
+	}
+
+	// decode fixed-width binary record at 'offset', see 'encode()'
+	// absolute reads, the position of 'buffer' is not changed
+	public PeptideStruct(ArrayList<ProteinStruct> proteins, ByteBuffer buffer, int offset, int maxVarModPerPeptide)
+	{
+		parent = proteins.get(buffer.getInt(offset));
+		startPos = buffer.getInt(offset + 4);
+		endPos = buffer.getInt(offset + 8);
+		varModMap = new TreeMap<Integer, ModificationStruct>();
+		short position;
+
+		for (int i = 0; i < maxVarModPerPeptide; i++)
+		{
+			position = buffer.getShort(offset + 12 + 4 * i);
+
+			if (position > -1)
+				varModMap.put(Integer.valueOf(position), MassInfo.getModification(buffer.getShort(offset + 14 + 4 * i)));
+			else
+				break;
+		}
+
+		modDeltaMass = sumModDeltaMass();
+	}
+
+	// return length in bytes of binary record
+	public static int getRecordLength(int maxVarModPerPeptide)
+	{ return 12 + 4 * maxVarModPerPeptide; }
+
+	// write fixed-width binary record: int proteinID, int startPos, int endPos
+	// followed by 'maxVarModPerPeptide' slots of short position and short modification ID, unused slots have position -1
+	// a peptide with more modifications than slots cannot be stored
+	public void encode(ByteBuffer buffer, int maxVarModPerPeptide)
+	{
+		if (varModMap.size() > maxVarModPerPeptide)
+			throw new IllegalArgumentException("Peptide " + getSequence(true) + " has " + varModMap.size() + " variable modifications, record holds only " + maxVarModPerPeptide);
+
+		buffer.putInt(parent.entryID);
+		buffer.putInt(startPos);
+		buffer.putInt(endPos);
+		int numMod = 0;
+		Integer position;
+
+		for (Iterator<Integer> iter = varModMap.keySet().iterator(); iter.hasNext(); numMod++)
+		{
+			position = iter.next();
+			buffer.putShort(position.shortValue());
+			buffer.putShort((short) varModMap.get(position).entryID);
+		}
+
+		for (; numMod < maxVarModPerPeptide; numMod++) // make every peptide have 'maxVarModPerPeptide' slots
+		{
+			buffer.putShort((short) -1);
+			buffer.putShort((short) -1);
+		}
 	}
 
 	public PeptideStruct clone()
-	{ return new PeptideStruct(this.parent, this.startPos, this.endPos, this.varModMap); }
+	{
+		PeptideStruct copy = new PeptideStruct(this.parent, this.startPos, this.endPos, this.varModMap);
+		copy.modDeltaMass = modDeltaMass; // same modifications, skip the summation
+
+		return copy;
+	}
 
 	// add variable modification
 	public void addModification(int pos, ModificationStruct mod)
 	{
-		if (varModMap.containsKey(new Integer(pos)))
+		if (varModMap.containsKey(Integer.valueOf(pos)))
 			HelperFunctions.debug("PeptideStruct", "Multiple variable modifications assigned to same residue!");
 		else
-			varModMap.put(new Integer(pos), mod);
+		{
+			varModMap.put(Integer.valueOf(pos), mod);
+			modDeltaMass = sumModDeltaMass(); // keep the position order of the summation
+		}
 	}
 
 	// return number of modifications
@@ -59,6 +128,10 @@ public class PeptideStruct
 
 	// return total delta mass of all modifications
 	public double getModDeltaMass()
+	{ return modDeltaMass; }
+
+	// sum delta mass of all modifications in position order
+	double sumModDeltaMass()
 	{
 		double mass = 0;
 
@@ -0,0 +1,125 @@
+// read-only index of observed precursor masses
+// masses are sorted and grouped into buckets of constant ppm width, i.e. bucket = log(mass) / log-step
+// built once before digestion, can be shared by all threads without locking
+public class PrecursorIndexStruct
+{
+	static final int maxBucketCount = 1 << 24; // limit size of bucket table for very small tolerances
+
+	public final double[] masses; // observed masses, sorted
+	public final int[] precursorIDs; // original precursor ID of each sorted mass
+	public final double ppm; // mass tolerance
+	final double tolerance; // 'ppm' as a fraction
+	public final double lowerBound, upperBound; // candidate masses outside this range can never match
+	final double logMinMass, logStep; // bucket boundaries on log scale
+	final int numBucket, bucketSpan; // number of buckets, number of neighbouring buckets covered by tolerance window
+	final int[] bucketStart; // first sorted index of each bucket, extra entry at the end
+
+	public PrecursorIndexStruct(double[] observedMasses, double ppm)
+	{
+		this.ppm = ppm;
+		tolerance = ppm * 0.000001;
+		int n = observedMasses.length;
+		Double[] sorted = new Double[n];
+
+		for (int i = 0; i < n; i++)
+			sorted[i] = Double.valueOf(observedMasses[i]);
+
+		Integer[] index = HelperFunctions.getIndexArray(sorted); // sort once, boxing is fine here
+		masses = new double[n];
+		precursorIDs = new int[n];
+
+		for (int i = 0; i < n; i++)
+		{
+			masses[i] = sorted[i].doubleValue();
+			precursorIDs[i] = index[i].intValue();
+		}
+
+		if (n == 0) // nothing to match
+		{
+			lowerBound = 1;
+			upperBound = 0;
+			logMinMass = 0;
+			logStep = 1;
+			numBucket = 0;
+			bucketSpan = 0;
+			bucketStart = new int[1];
+			return;
+		}
+
+		double window = -Math.log(1 - tolerance); // widest side of the tolerance window on log scale
+		double logRange = Math.log(masses[n - 1]) - Math.log(masses[0]);
+		double step = window;
+
+		if (logRange / step > maxBucketCount - 1) // coarser buckets, scan more of them
+			step = logRange / (maxBucketCount - 1);
+
+		lowerBound = masses[0] / (1 + 2 * tolerance);
+		upperBound = masses[n - 1] / (1 - 2 * tolerance);
+		logMinMass = Math.log(masses[0]);
+		logStep = step;
+		numBucket = (int) (logRange / step) + 1;
+		bucketSpan = (int) Math.ceil(window / step) + 1; // one extra bucket against rounding of log()
+		bucketStart = new int[numBucket + 1];
+
+		int current = 0;
+
+		for (int b = 0; b < numBucket; b++) // sorted masses fill buckets in order
+		{
+			while (current < n && getBucket(masses[current]) < b)
+				current++;
+
+			bucketStart[b] = current;
+		}
+
+		bucketStart[numBucket] = n;
+	}
+
+	// return bucket of a mass, can be outside [0, numBucket)
+	int getBucket(double mass)
+	{ return (int) Math.floor((Math.log(mass) - logMinMass) / logStep); }
+
+	// return number of observed masses
+	public int size()
+	{ return masses.length; }
+
+	// return first sorted index whose observed mass is not too low to match 'mass', i.e. could match 'mass' or any heavier mass
+	// uses the same widened window as 'lowerBound' and 'upperBound', 'size()' if none
+	public int firstReachable(double mass)
+	{
+		double bound = mass * (1 - 2 * tolerance);
+		int low = 0, high = masses.length, mid;
+
+		while (low < high)
+		{
+			mid = (low + high) >>> 1;
+
+			if (masses[mid] < bound)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	// return lowest candidate mass that can match observed mass 'masses[id]', widened as 'lowerBound'
+	public double getLowestMatch(int id)
+	{ return masses[id] / (1 + 2 * tolerance); }
+
+	// write sorted index range [range[0], range[1]) of observed masses matching 'mass'
+	// return number of matches
+	public int match(double mass, int[] range)
+	{
+		if (mass < lowerBound || mass > upperBound) // quick rejection, no log() needed
+			return 0;
+
+		int bucket = getBucket(mass);
+		int begin = Math.max(bucket - bucketSpan, 0);
+		int end = Math.min(bucket + bucketSpan + 1, numBucket);
+
+		if (begin >= end)
+			return 0;
+
+		return MassMatcher.match(masses, bucketStart[begin], bucketStart[end], mass, ppm, range); // binary search within the buckets
+	}
+}
@@ -10,6 +10,7 @@ public class ProteinStruct
 	public final int length;
 	public final boolean isForward; // flag is TRUE for 'forward' and FALSE for 'reverse' and 'unrelated'
 	ArrayList<Integer> cleaveSites = new ArrayList<Integer>(); // contain cleavage sites, starting index = 1
+	double[] prefixMasses; // prefixMasses[i] = total residue mass of sequence[0, i), include fixed modifications
 
 	public ProteinStruct(int entryID, String name, String description, String sequence, boolean isForward)
 	{
@@ -68,6 +69,33 @@ public class ProteinStruct
 		// HelperFunctions.debug("cleaveSites", cleaveSites);
 	}
 
+	// compute prefix sums of residue masses
+	// must be called after all fixed modifications are added to 'MassInfo'
+	public void computeResidueMasses()
+	{
+		prefixMasses = new double[sequence.length() + 1];
+
+		for (int i = 0; i < sequence.length(); i++)
+			prefixMasses[i + 1] = prefixMasses[i] + MassInfo.getResidueMass(sequence.charAt(i));
+	}
+
+	// return total residue mass at specified indices [startPos, startPos + 1, ..., endPos], without water
+	// difference of prefix sums, can be a few ulps off a left-to-right sum, only good for matching within a ppm window
+	public double getResidueMass(int startPos, int endPos)
+	{ return prefixMasses[endPos + 1] - prefixMasses[startPos]; }
+
+	// same as 'getResidueMass()', but summed from left to right like 'MassInfo.getMass()' on the sequence string
+	// bit-identical to the string version, needed wherever ions are compared, a few ulps can flip ties between them
+	public double sumResidueMass(int startPos, int endPos)
+	{
+		double mass = 0;
+
+		for (int i = startPos; i <= endPos; i++)
+			mass += MassInfo.getResidueMass(sequence.charAt(i));
+
+		return mass;
+	}
+
 	public ArrayList<Integer> getCleaveSites()
 	{ return cleaveSites; }
 
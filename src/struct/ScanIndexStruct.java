@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// scan index of one mzXML file, scan numbers in ascending order with their byte offsets
+// lookup is a direct array access when scan numbers are (nearly) contiguous, binary search otherwise
+// can be cached next to the mzXML file as '<file>.zxidx', keyed by size and last-modified time of the mzXML file
+public class ScanIndexStruct
+{
+	static final int magic = 0x5A584958; // "ZXIX"
+	static final int version = 1;
+	static final int headerLength = 4 + 4 + 8 + 8 + 4; // magic, version, file size, last modified, number of scans
+	static final int maxDenseGap = 2; // use dense lookup if the scan number range is at most twice the number of scans
+
+	public final int[] scanNumbers;
+	public final long[] offsets;
+	final long[] denseOffsets; // offset of scan 'firstScan + i', -1 for missing scans, null if too sparse
+	final int firstScan;
+
+	public ScanIndexStruct(int[] scanNumbers, long[] offsets)
+	{
+		this.scanNumbers = scanNumbers;
+		this.offsets = offsets;
+
+		long range = (scanNumbers.length == 0) ? 0 : (long) scanNumbers[scanNumbers.length - 1] - scanNumbers[0] + 1;
+		firstScan = (scanNumbers.length == 0) ? 0 : scanNumbers[0];
+
+		if (range == scanNumbers.length) // contiguous
+			denseOffsets = offsets;
+
+		else if (range > 0 && range <= maxDenseGap * scanNumbers.length)
+		{
+			denseOffsets = new long[(int) range];
+			Arrays.fill(denseOffsets, -1);
+
+			for (int i = 0; i < scanNumbers.length; i++)
+				denseOffsets[scanNumbers[i] - firstScan] = offsets[i];
+		}
+
+		else
+			denseOffsets = null;
+	}
+
+	public int size()
+	{ return scanNumbers.length; }
+
+	// return byte offset of a scan, -1 if not found
+	public long getOffset(int scanNumber)
+	{
+		if (denseOffsets != null)
+		{
+			long position = (long) scanNumber - firstScan;
+			return (position >= 0 && position < denseOffsets.length) ? denseOffsets[(int) position] : -1;
+		}
+
+		int position = Arrays.binarySearch(scanNumbers, scanNumber);
+		return (position >= 0) ? offsets[position] : -1;
+	}
+
+	// load cached index, return null if there is none or it does not belong to the current mzXML file
+	public static ScanIndexStruct load(String indexPath, long fileSize, long lastModified) throws IOException
+	{
+		File indexFile = new File(indexPath);
+
+		if (!indexFile.isFile() || indexFile.length() < headerLength)
+			return null;
+
+		RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+		ByteBuffer buffer;
+
+		// plain reads, a mapped cache could not be replaced by 'save()' on Windows until it is garbage collected
+		try
+		{
+			FileChannel channel = file.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(headerLength);
+
+			readFully(channel, header);
+
+			if (header.getInt() != magic || header.getInt() != version || header.getLong() != fileSize || header.getLong() != lastModified)
+				return null; // stale or foreign
+
+			int numScan = header.getInt();
+
+			if (numScan < 0 || channel.size() != headerLength + numScan * 12L)
+				return null; // truncated
+
+			buffer = ByteBuffer.allocate(numScan * 12);
+			readFully(channel, buffer);
+		}
+
+		finally
+		{ file.close(); }
+
+		int numScan = buffer.capacity() / 12;
+		int[] scanNumbers = new int[numScan];
+		long[] offsets = new long[numScan];
+
+		buffer.asIntBuffer().get(scanNumbers);
+		buffer.position(buffer.position() + 4 * numScan);
+		buffer.asLongBuffer().get(offsets);
+
+		return new ScanIndexStruct(scanNumbers, offsets);
+	}
+
+	// fill 'buffer' from the current channel position and rewind it for reading
+	static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer) < 0)
+				throw new IOException("Unexpected end of scan index");
+		}
+
+		buffer.flip();
+	}
+
+	// write index cache
+	// written to a temp file first, other instances may be reading or writing the same cache
+	public void save(String indexPath, long fileSize, long lastModified) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(headerLength + 12 * size());
+
+		buffer.putInt(magic).putInt(version).putLong(fileSize).putLong(lastModified).putInt(size());
+		buffer.asIntBuffer().put(scanNumbers);
+		buffer.position(buffer.position() + 4 * size());
+		buffer.asLongBuffer().put(offsets);
+		buffer.clear();
+
+		File indexFile = new File(indexPath);
+		File tempFile = File.createTempFile("scanindex", ".tmp", indexFile.getAbsoluteFile().getParentFile());
+		FileChannel channel = new FileOutputStream(tempFile).getChannel();
+
+		try
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		finally
+		{ channel.close(); }
+
+		if (!tempFile.renameTo(indexFile)) // Windows does not replace existing files
+		{
+			indexFile.delete();
+
+			if (!tempFile.renameTo(indexFile))
+			{
+				tempFile.delete();
+				throw new IOException("Cannot rename " + tempFile + " to " + indexPath);
+			}
+		}
+	}
+}
@@ -0,0 +1,176 @@
+import java.util.Arrays;
+
+// reusable scoring buffers of one thread, shared by every candidate 'SpectrumMatcher' scores in that thread
+// matches are kept as parallel primitive arrays, and each peak has a slot pointing to its match list
+// a list is kept sorted as matches come in, favor major ion, then sort by absolute mass error, ties stay in insertion order
+// only touched peak slots are reset, so starting a new candidate costs as much as the previous one matched
+public class ScoringContextStruct
+{
+	// matches, only the first 'numMatch' entries are valid
+	public double[] massError = new double[64];
+	public byte[] type = new byte[64]; // ion type and flags, see 'FragmentLadderStruct'
+	public short[] ionID = new short[64];
+	public int[] variant = new int[64];
+	public byte[] chargeState = new byte[64];
+	public int[] nextMatch = new int[64]; // next match of the same peak, -1 at the end
+	public int[] siteLow = new int[64], siteHigh = new int[64]; // link sites of its own peptide the match agree with, filled by 'SpectrumMatcher' for site scoring
+	public int numMatch;
+
+	// peak slots
+	public int[] firstMatch = new int[0]; // best match of each peak, -1 if unmatched
+	public int[] touchedPeaks = new int[0]; // peaks with any match, ascending after 'sortTouchedPeaks()'
+	public int numTouched;
+
+	// major ion matches for peptideA and peptideB, bit 'ionID' is set once that b- or y-ion is matched
+	public long[][] bIonCoverage = new long[2][1], yIonCoverage = new long[2][1];
+	long[] siteCoverage = new long[0]; // the same for each crosslink site pair
+
+	boolean[] ionFound = new boolean[0]; // whether each ladder entry is matched unmodified
+
+	public ScoringContextStruct()
+	{}
+
+	// forget previous candidate, then make room for a spectrum of 'numPeak' peaks
+	public void reset(int numPeak)
+	{
+		for (int i = 0; i < numTouched; i++)
+			firstMatch[touchedPeaks[i]] = -1;
+
+		if (firstMatch.length < numPeak)
+		{
+			firstMatch = new int[numPeak];
+			touchedPeaks = new int[numPeak];
+			Arrays.fill(firstMatch, -1);
+		}
+
+		numMatch = 0;
+		numTouched = 0;
+	}
+
+	// add a match of ladder entry 'ion' to peak 'peakID', after every match it does not rank above
+	public void addMatch(int peakID, double error, FragmentLadderStruct ladder, int ion, int ionVariant, int charge)
+	{
+		if (numMatch == massError.length)
+		{
+			massError = Arrays.copyOf(massError, 2 * numMatch);
+			type = Arrays.copyOf(type, 2 * numMatch);
+			ionID = Arrays.copyOf(ionID, 2 * numMatch);
+			variant = Arrays.copyOf(variant, 2 * numMatch);
+			chargeState = Arrays.copyOf(chargeState, 2 * numMatch);
+			nextMatch = Arrays.copyOf(nextMatch, 2 * numMatch);
+			siteLow = Arrays.copyOf(siteLow, 2 * numMatch);
+			siteHigh = Arrays.copyOf(siteHigh, 2 * numMatch);
+		}
+
+		int current = numMatch++;
+		massError[current] = error;
+		type[current] = ladder.type[ion];
+		ionID[current] = ladder.ionID[ion];
+		variant[current] = ionVariant;
+		chargeState[current] = (byte) charge;
+
+		if (firstMatch[peakID] < 0) // first match of this peak
+		{
+			touchedPeaks[numTouched++] = peakID;
+			firstMatch[peakID] = current;
+			nextMatch[current] = -1;
+
+			return;
+		}
+
+		if (compare(current, firstMatch[peakID]) < 0) // new best match
+		{
+			nextMatch[current] = firstMatch[peakID];
+			firstMatch[peakID] = current;
+
+			return;
+		}
+
+		int previous = firstMatch[peakID];
+
+		while (nextMatch[previous] >= 0 && compare(current, nextMatch[previous]) >= 0)
+			previous = nextMatch[previous];
+
+		nextMatch[current] = nextMatch[previous];
+		nextMatch[previous] = current;
+	}
+
+	// visit peaks in ascending order
+	public void sortTouchedPeaks()
+	{ Arrays.sort(touchedPeaks, 0, numTouched); }
+
+	public boolean isMajorIon(int match)
+	{ return FragmentLadderStruct.isMajorIon(type[match], variant[match]); }
+
+	// favor major ion explanation, then lower absolute mass error
+	int compare(int m1, int m2)
+	{
+		if (isMajorIon(m1) != isMajorIon(m2))
+			return isMajorIon(m1) ? -1 : 1;
+
+		return (int) Math.signum(Math.abs(massError[m1]) - Math.abs(massError[m2]));
+	}
+
+	// forget major ion matches
+	public void clearCoverage()
+	{
+		for (int i = 0; i < 2; i++)
+		{
+			Arrays.fill(bIonCoverage[i], 0);
+			Arrays.fill(yIonCoverage[i], 0);
+		}
+	}
+
+	// record a matched major ion, linked or not
+	public void addCoverage(byte ionType, int id)
+	{
+		int peptide = FragmentLadderStruct.fromSecondPeptide(ionType) ? 1 : 0;
+
+		if (FragmentLadderStruct.getIonType(ionType) == 'b')
+			bIonCoverage[peptide] = setBit(bIonCoverage[peptide], id);
+		else
+			yIonCoverage[peptide] = setBit(yIonCoverage[peptide], id);
+	}
+
+	// set a bit, grow for long peptides
+	static long[] setBit(long[] bits, int position)
+	{
+		if ((position >>> 6) >= bits.length)
+			bits = Arrays.copyOf(bits, (position >>> 6) + 1);
+
+		bits[position >>> 6] |= 1L << position;
+
+		return bits;
+	}
+
+	// number of matched ions in a coverage set
+	public int countCoverage(long[] bits)
+	{
+		int count = 0;
+
+		for (int i = 0; i < bits.length; i++)
+			count += Long.bitCount(bits[i]);
+
+		return count;
+	}
+
+	// flags for a ladder of 'size' entries, not cleared
+	public boolean[] getIonFound(int size)
+	{
+		if (ionFound.length < size)
+			ionFound = new boolean[size];
+
+		return ionFound;
+	}
+
+	// empty major ion coverage of 'length' words for crosslink site pairs
+	public long[] getSiteCoverage(int length)
+	{
+		if (siteCoverage.length < length)
+			siteCoverage = new long[length];
+		else
+			Arrays.fill(siteCoverage, 0, length, 0);
+
+		return siteCoverage;
+	}
+}
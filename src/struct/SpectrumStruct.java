@@ -1,17 +1,28 @@
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Collections;
-
 // data structure for MS/MS spectrum
+// peaks are stored as parallel primitive arrays, charge state 0 if not determined
+// charged peaks, i.e. each peak at each possible charge state, are sorted by mass once per scan and shared by all matchers
+// all derived data are memoized on first use and only invalidated by 'setSpectrum()'
+// a spectrum is only used by one thread at a time, no locking
 public class SpectrumStruct
 {
 	public final String rawfileName;
 	public final PrecursorStruct precursor;
 	public final int parentScanNumber;
 	public final double retentionTime, basePeakIntensity, precursorIntensity;
-	public double[][] spectrum; // can be changed via de-isotoping
 
-	public SpectrumStruct(String rawfileName, PrecursorStruct precursor, int parentScanNumber, double retentionTime, double basePeakIntensity, double precursorIntensity, double[][] spectrum)
+	// peaks, can be changed via de-isotoping
+	public double[] mz, intensity;
+	public byte[] charge;
+
+	// memoized, see 'getTotalPeakAndInt()', 'getScorablePeakAndInt()', 'sortChargedPeaks()' and 'splitChargedPeaks()'
+	double[] totalPeakAndInt, scorablePeakAndInt;
+	double[] singlyChargedMass; // charged peaks sorted by mass with one charge
+	int[] chargedPeakIDs; // peak of each charged peak
+	byte[] chargedPeakCharges; // charge state of each charged peak
+	int[][] chargedPeakPositions; // positions of charged peaks for each charge state
+	double[][] chargedPeakMasses; // and their masses
+
+	public SpectrumStruct(String rawfileName, PrecursorStruct precursor, int parentScanNumber, double retentionTime, double basePeakIntensity, double precursorIntensity, double[] mz, double[] intensity)
 	{
 		this.rawfileName = rawfileName;
 		this.precursor = precursor;
@@ -19,105 +30,267 @@ public class SpectrumStruct
 		this.retentionTime = retentionTime;
 		this.basePeakIntensity = basePeakIntensity;
 		this.precursorIntensity = precursorIntensity;
-		this.spectrum = spectrum;
+		this.mz = mz;
+		this.intensity = intensity;
+		charge = new byte[mz.length];
 	}
 
+	public SpectrumStruct(String rawfileName, PrecursorStruct precursor, int parentScanNumber, double retentionTime, double basePeakIntensity, double precursorIntensity, double[][] spectrum)
+	{
+		this(rawfileName, precursor, parentScanNumber, retentionTime, basePeakIntensity, precursorIntensity, new double[0], new double[0]);
+		setSpectrum(spectrum);
+	}
+
+	// replace peaks with [m/z, intensity] or [m/z, intensity, charge] entries
 	public void setSpectrum(double[][] spectrum)
-	{ this.spectrum = spectrum; }
+	{
+		mz = new double[spectrum.length];
+		intensity = new double[spectrum.length];
+		charge = new byte[spectrum.length];
+
+		for (int i = 0; i < spectrum.length; i++)
+		{
+			mz[i] = spectrum[i][0];
+			intensity[i] = spectrum[i][1];
+
+			if (spectrum[i].length > 2)
+				charge[i] = (byte) spectrum[i][2];
+		}
+
+		invalidate();
+	}
+
+	// replace peaks with parallel arrays of equal length
+	public void setSpectrum(double[] mz, double[] intensity, byte[] charge)
+	{
+		this.mz = mz;
+		this.intensity = intensity;
+		this.charge = charge;
+		invalidate();
+	}
+
+	// clear memoized data, peaks have changed
+	void invalidate()
+	{
+		totalPeakAndInt = null;
+		scorablePeakAndInt = null;
+		singlyChargedMass = null;
+		chargedPeakIDs = null;
+		chargedPeakCharges = null;
+		chargedPeakPositions = null;
+		chargedPeakMasses = null;
+	}
+
+	// return peaks as [m/z, intensity] entries
+	public double[][] getSpectrum()
+	{
+		double[][] spectrum = new double[mz.length][2];
+
+		for (int i = 0; i < mz.length; i++)
+		{
+			spectrum[i][0] = mz[i];
+			spectrum[i][1] = intensity[i];
+		}
+
+		return spectrum;
+	}
 
 	// size of spectrum
 	public int length()
-	{ return spectrum.length; }
-	
+	{ return mz.length; }
+
 	// return peak intensity
 	public double getIntensity(int position)
-	{ return spectrum[position][1]; }
-	
+	{ return intensity[position]; }
+
 	// return peak count and total intensity for scoring IntCov and PeakCov
+	// memoized, shared by all matchers, do not modify
 	public double[] getTotalPeakAndInt(ParamStruct param)
 	{
-		double[] output = {0, 0};
-		
-		for (int i = 0; i < spectrum.length; i++)
+		if (totalPeakAndInt == null)
 		{
-			if (spectrum[i][1] > param.minPeakIntToScore)
+			totalPeakAndInt = new double[2];
+
+			for (int i = 0; i < intensity.length; i++)
 			{
-				output[0] += 1;
-				output[1] += spectrum[i][1];
+				if (intensity[i] > param.minPeakIntToScore)
+				{
+					totalPeakAndInt[0] += 1;
+					totalPeakAndInt[1] += intensity[i];
+				}
 			}
 		}
-		
-		return output;
+
+		return totalPeakAndInt;
 	}
 
-	// return charge peaks
-	// use minimum peak intensity threshold from 'ParamStruct'
-	public ArrayList<ChargedPeakStruct> getSortedChargedPeaks(ParamStruct param)
+	// return peak count and total intensity of peaks that count when matched, i.e. the most a candidate can cover
+	// memoized, shared by all matchers, do not modify
+	public double[] getScorablePeakAndInt(ParamStruct param)
 	{
-		ArrayList<ChargedPeakStruct> sortedChargedPeaks = new ArrayList<ChargedPeakStruct>();
-
-		if (spectrum[0].length == 2) // no charge state determined
+		if (scorablePeakAndInt == null)
 		{
-			for (int i = 0; i < spectrum.length; i++)
+			scorablePeakAndInt = new double[2];
+
+			for (int i = 0; i < intensity.length; i++)
 			{
-				if (spectrum[i][1] > param.minPeakInt)
+				if (intensity[i] >= param.minPeakIntToScore)
 				{
-					if (spectrum[i][0] < precursor.precursorMZ)
-					{
-						for (int z = 1; z <= precursor.chargeState; z++)
-							sortedChargedPeaks.add(new ChargedPeakStruct(i, z, spectrum[i][0]));
-					}
-
-					else // m/z higher than precursor's
-					{
-						for (int z = 1; z < precursor.chargeState; z++)
-							sortedChargedPeaks.add(new ChargedPeakStruct(i, z, spectrum[i][0]));
-					}
+					scorablePeakAndInt[0] += 1;
+					scorablePeakAndInt[1] += intensity[i];
 				}
 			}
 		}
 
-		else
+		return scorablePeakAndInt;
+	}
+
+	// return masses with one charge of all charged peaks, in ascending order
+	// memoized, shared by all matchers, do not modify
+	public double[] getSinglyChargedMass(ParamStruct param)
+	{
+		if (singlyChargedMass == null)
+			sortChargedPeaks(param);
+
+		return singlyChargedMass;
+	}
+
+	// return peak of each charged peak, in mass order
+	public int[] getChargedPeakIDs(ParamStruct param)
+	{
+		if (singlyChargedMass == null)
+			sortChargedPeaks(param);
+
+		return chargedPeakIDs;
+	}
+
+	// return charge state of each charged peak, in mass order
+	public byte[] getChargedPeakCharges(ParamStruct param)
+	{
+		if (singlyChargedMass == null)
+			sortChargedPeaks(param);
+
+		return chargedPeakCharges;
+	}
+
+	// compute charged peaks sorted by mass with one charge
+	// peaks of unknown charge state are taken at every charge state up to the precursor's, less one above precursor m/z
+	// use minimum peak intensity threshold from 'ParamStruct'
+	void sortChargedPeaks(ParamStruct param)
+	{
+		int count = 0;
+
+		for (int i = 0; i < mz.length; i++) // count charged peaks
+		{
+			if (intensity[i] > param.minPeakInt)
+			{
+				if (charge[i] != 0)
+					count++;
+				else if (mz[i] < precursor.precursorMZ)
+					count += precursor.chargeState;
+				else
+					count += precursor.chargeState - 1;
+			}
+		}
+
+		double[] masses = new double[count];
+		int[] peakIDs = new int[count];
+		byte[] charges = new byte[count];
+		count = 0;
+
+		for (int i = 0; i < mz.length; i++) // in peak order, then charge order
 		{
-			for (int i = 0; i < spectrum.length; i++)
+			if (intensity[i] > param.minPeakInt)
 			{
-				if (spectrum[i][1] > param.minPeakInt)
+				if (charge[i] != 0) // known charge state
 				{
-					if (spectrum[i][2] == 0) // unknown charge state
+					masses[count] = getSinglyChargedMass(mz[i], charge[i]);
+					peakIDs[count] = i;
+					charges[count++] = charge[i];
+				}
+
+				else
+				{
+					int maxCharge = (mz[i] < precursor.precursorMZ) ? precursor.chargeState : precursor.chargeState - 1; // m/z higher than precursor's
+
+					for (int z = 1; z <= maxCharge; z++)
 					{
-						if (spectrum[i][0] < precursor.precursorMZ)
-						{
-							for (int z = 1; z <= precursor.chargeState; z++)
-								sortedChargedPeaks.add(new ChargedPeakStruct(i, z, spectrum[i][0]));
-						}
-
-						else // m/z higher than precursor's
-						{
-							for (int z = 1; z < precursor.chargeState; z++)
-								sortedChargedPeaks.add(new ChargedPeakStruct(i, z, spectrum[i][0]));
-						}
+						masses[count] = getSinglyChargedMass(mz[i], z);
+						peakIDs[count] = i;
+						charges[count++] = (byte) z;
 					}
-
-					else
-						sortedChargedPeaks.add(new ChargedPeakStruct(i, (int) spectrum[i][2], spectrum[i][0]));
 				}
 			}
 		}
 
-		Collections.sort(sortedChargedPeaks, new Comparator<ChargedPeakStruct>()
+		int[] order = HelperFunctions.getSortedIndex(masses, count); // stable, ties stay in peak order
+		chargedPeakIDs = new int[count];
+		chargedPeakCharges = new byte[count];
+		double[] sortedMasses = new double[count];
+
+		for (int i = 0; i < count; i++)
 		{
-			public int compare(ChargedPeakStruct entry1, ChargedPeakStruct entry2) // compare based on mass
-    		{
-    			if (entry1.massWithOneCharge > entry2.massWithOneCharge)
-    				return 1;
-    			if (entry1.massWithOneCharge < entry2.massWithOneCharge)
-    				return -1;
+			sortedMasses[i] = masses[order[i]];
+			chargedPeakIDs[i] = peakIDs[order[i]];
+			chargedPeakCharges[i] = charges[order[i]];
+		}
 
-    			return 0;
-    		}
-		});
+		singlyChargedMass = sortedMasses; // marks the charged peaks as computed
+	}
+
+	// convert m/z to mass with one charge
+	static double getSinglyChargedMass(double mz, int chargeState)
+	{ return mz * chargeState - (chargeState - 1) * MassInfo.proton; }
 
-		return sortedChargedPeaks;
+	// return positions of charged peaks at a charge state, in mass order
+	// memoized per charge state, for matching with Da mass tolerance
+	public int[] getChargedPeakPositions(int chargeState, ParamStruct param)
+	{
+		if (chargedPeakPositions == null)
+			splitChargedPeaks(param);
+
+		return chargedPeakPositions[chargeState - 1];
+	}
+
+	// return masses with one charge of charged peaks at a charge state, in ascending order
+	public double[] getSinglyChargedMass(int chargeState, ParamStruct param)
+	{
+		if (chargedPeakPositions == null)
+			splitChargedPeaks(param);
+
+		return chargedPeakMasses[chargeState - 1];
+	}
+
+	// split charged peaks according to charge state, up to the precursor's
+	void splitChargedPeaks(ParamStruct param)
+	{
+		double[] masses = getSinglyChargedMass(param);
+		int[][] positions = new int[precursor.chargeState][];
+		chargedPeakMasses = new double[precursor.chargeState][];
+
+		for (int z = 1; z <= precursor.chargeState; z++)
+		{
+			int count = 0;
+
+			for (int i = 0; i < chargedPeakCharges.length; i++)
+				if (chargedPeakCharges[i] == z)
+					count++;
+
+			positions[z - 1] = new int[count];
+			chargedPeakMasses[z - 1] = new double[count];
+			count = 0;
+
+			for (int i = 0; i < chargedPeakCharges.length; i++)
+			{
+				if (chargedPeakCharges[i] == z)
+				{
+					positions[z - 1][count] = i;
+					chargedPeakMasses[z - 1][count++] = masses[i];
+				}
+			}
+		}
+
+		chargedPeakPositions = positions; // marks the split as computed
 	}
 
 	public String toString()
@@ -128,22 +301,13 @@ public class SpectrumStruct
 		details += ", basePeakIntensity: " + basePeakIntensity;
 		details += ", precursorIntensity: " + precursorIntensity + "\n";
 
-		if (spectrum[0].length == 2)
-		{
-			for (int i = 0; i < spectrum.length; i++)
-				details += "m/z: " + spectrum[i][0] + ", intensity: " + spectrum[i][1] + "\n";
-		}
-
-		else
-		{
-			for (int i = 0; i < spectrum.length; i++)
-				details += "m/z: " + spectrum[i][0] + ", intensity: " + spectrum[i][1] + ", charge: " + spectrum[i][2] + "\n";
-		}
+		for (int i = 0; i < mz.length; i++)
+			details += "m/z: " + mz[i] + ", intensity: " + intensity[i] + ", charge: " + charge[i] + "\n";
 
 		return details;
 	}
-	
+
 	// report format for text output via SpectrumMatcher
 	public String toReport()
 	{ return rawfileName + "\t" + precursor.toReport() + "\t" + parentScanNumber + "\t" + retentionTime + "\t" + basePeakIntensity + "\t" + precursorIntensity + "\t" + length(); }
-}
\ No newline at end of file
+}
@@ -78,41 +78,6 @@ public class SynchronizedTreeMap
 	public synchronized String toString()
 	{ return data.toString(); }
 	
-	// check precursor mass first
-	public synchronized void checkMassAddAndWrite(Object key, Object value, FileWriter writer, String line, Double[] observedMasses, Integer[] indexedObservedMasses, double peptideMass, double massTolerance, SynchronizedTreeMap globalMatches, int threadID, boolean isCrosslink)
-	{
-		ArrayList<Integer> tempmatches = MassMatcher.match(observedMasses, peptideMass, massTolerance);
-		ThreadPeptideStruct tempThreadPeptide;
-
-		if (tempmatches.size() > 0) // found some matches
-		{
-			if (data.containsKey(key)) // add value to map
-			{
-				((ArrayList) data.get(key)).add(value);
-				tempThreadPeptide = new ThreadPeptideStruct(threadID, isCrosslink, ((ArrayList) data.get(key)).size() - 1);
-			}
-			
-			else
-			{
-				ArrayList tempList = new ArrayList();
-				tempList.add(value);
-				data.put(key, tempList);
-				tempThreadPeptide = new ThreadPeptideStruct(threadID, isCrosslink, 0);
-			}
-			
-			for (int j = 0; j < tempmatches.size(); j++) // update global matches
-				globalMatches.addToValueList(indexedObservedMasses[tempmatches.get(j).intValue()], tempThreadPeptide);			
-			
-			try // only write mached peptides
-			{
-				writer.write(line);
-			}
-			
-			catch (Exception e)
-			{ HelperFunctions.debug("SynchronizedTreeMap::checkMassAddAndWrite", HelperFunctions.getStackTrace(e)); }
-		}
-	}
-	
 	// clear resource
 	public void clear()
 	{ data.clear(); }
@@ -0,0 +1,35 @@
+import java.util.ArrayList;
+
+// data structure for precursor matches found by one digestion thread
+// only touched by its own thread, merged into the global match list after all threads finished
+public class ThreadMatchStruct
+{
+	public final int threadID;
+	public int numPeptide, numCrosslink; // number of matched peptides and crosslinks written by this thread, i.e. next peptide ID
+	public final ArrayList<Integer> precursorIDs = new ArrayList<Integer>(); // matched precursor ID
+	public final ArrayList<ThreadPeptideStruct> matches = new ArrayList<ThreadPeptideStruct>(); // matched peptide, same order as 'precursorIDs'
+
+	public ThreadMatchStruct(int threadID)
+	{
+		this.threadID = threadID;
+		numPeptide = 0;
+		numCrosslink = 0;
+	}
+
+	// record a match
+	public void add(int precursorID, ThreadPeptideStruct match)
+	{
+		precursorIDs.add(Integer.valueOf(precursorID));
+		matches.add(match);
+	}
+
+	// move all matches to the global match list
+	public void mergeInto(SynchronizedTreeMap globalMatches)
+	{
+		for (int i = 0; i < matches.size(); i++)
+			globalMatches.addToValueList(precursorIDs.get(i), matches.get(i));
+
+		precursorIDs.clear();
+		matches.clear();
+	}
+}